@@ -1,15 +1,22 @@
 package chat.dim;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import chat.dim.crypto.DecryptKey;
 import chat.dim.crypto.PrivateKey;
+import chat.dim.crypto.SymmetricAlgorithms;
 import chat.dim.crypto.SymmetricKey;
 import chat.dim.database.ContactTable;
 import chat.dim.database.DocumentTable;
+import chat.dim.database.GroupHistoryTable;
+import chat.dim.database.GroupKeysTable;
 import chat.dim.database.GroupTable;
 import chat.dim.database.LoginTable;
 import chat.dim.database.MetaTable;
@@ -31,6 +38,9 @@ import chat.dim.protocol.ID;
 import chat.dim.protocol.LoginCommand;
 import chat.dim.protocol.Meta;
 import chat.dim.protocol.ReliableMessage;
+import chat.dim.protocol.group.ExpelCommand;
+import chat.dim.protocol.group.InviteCommand;
+import chat.dim.protocol.group.QuitCommand;
 import chat.dim.protocol.group.ResetCommand;
 import chat.dim.type.Pair;
 
@@ -42,8 +52,10 @@ public class SharedDatabase implements AccountDBI, MessageDBI, SessionDBI, UserT
     public UserTable userTable;
     public ContactTable contactTable;
     public GroupTable groupTable;
+    public GroupHistoryTable groupHistoryTable;
 
     public MsgKeyTable msgKeyTable;
+    public GroupKeysTable groupKeysTable;
 
     public LoginTable loginTable;
     public ProviderTable providerTable;
@@ -93,6 +105,16 @@ public class SharedDatabase implements AccountDBI, MessageDBI, SessionDBI, UserT
         return documentTable.getDocuments(entity);
     }
 
+    /**
+     *  Load meta & documents of the entities into memory caches in batch
+     *
+     * @param entities - entity IDs
+     */
+    public void prefetch(Collection<ID> entities) {
+        metaTable.prefetchMeta(entities);
+        documentTable.prefetchDocuments(entities);
+    }
+
     @Override
     public ID getFounder(ID group) {
         return groupTable.getFounder(group);
@@ -108,10 +130,26 @@ public class SharedDatabase implements AccountDBI, MessageDBI, SessionDBI, UserT
         return groupTable.getMembers(group);
     }
 
+    public boolean containsMember(ID member, ID group) {
+        return groupTable.containsMember(member, group);
+    }
+
     @Override
     public boolean saveMembers(List<ID> members, ID group) {
+        List<ID> old = groupTable.getMembers(group);
         boolean ok = groupTable.saveMembers(members, group);
         if (ok) {
+            boolean removed = false;
+            if (old != null) {
+                Set<ID> set = new HashSet<>(members);
+                for (ID item : old) {
+                    if (!set.contains(item)) {
+                        removed = true;
+                        break;
+                    }
+                }
+            }
+            rotateGroupKeys(group, removed);
             Map<String, Object> info = new HashMap<>();
             info.put("action", "update");
             info.put("members", members);
@@ -125,6 +163,7 @@ public class SharedDatabase implements AccountDBI, MessageDBI, SessionDBI, UserT
     public boolean addMember(ID member, ID group) {
         boolean ok = groupTable.addMember(member, group);
         if (ok) {
+            rotateGroupKeys(group, false);
             Map<String, Object> info = new HashMap<>();
             info.put("action", "add");
             info.put("member", member);
@@ -138,6 +177,7 @@ public class SharedDatabase implements AccountDBI, MessageDBI, SessionDBI, UserT
     public boolean removeMember(ID member, ID group) {
         boolean ok = groupTable.removeMember(member, group);
         if (ok) {
+            rotateGroupKeys(group, true);
             Map<String, Object> info = new HashMap<>();
             info.put("action", "remove");
             info.put("member", member);
@@ -151,6 +191,8 @@ public class SharedDatabase implements AccountDBI, MessageDBI, SessionDBI, UserT
     public boolean removeGroup(ID group) {
         boolean ok = groupTable.removeGroup(group);
         if (ok) {
+            // no more messages for this group, needn't renew the message key
+            groupKeysTable.removeGroupKeys(group);
             Map<String, Object> info = new HashMap<>();
             info.put("action", "remove");
             info.put("group", group);
@@ -160,6 +202,24 @@ public class SharedDatabase implements AccountDBI, MessageDBI, SessionDBI, UserT
         return ok;
     }
 
+    /**
+     *  Drop the encrypted keys when members changed, so they will be encrypted
+     *  for the new members again; and when any member removed, renew the message
+     *  key of current user, so the removed members cannot read the new messages
+     *
+     * @param group   - group ID
+     * @param removed - whether any member removed
+     */
+    private void rotateGroupKeys(ID group, boolean removed) {
+        groupKeysTable.removeGroupKeys(group);
+        if (removed) {
+            ID user = userTable.getCurrentUser();
+            if (user != null) {
+                msgKeyTable.cacheCipherKey(user, group, SymmetricKey.generate(SymmetricAlgorithms.AES));
+            }
+        }
+    }
+
     @Override
     public List<ID> getAssistants(ID group) {
         return groupTable.getAssistants(group);
@@ -186,27 +246,66 @@ public class SharedDatabase implements AccountDBI, MessageDBI, SessionDBI, UserT
 
     @Override
     public boolean saveGroupHistory(GroupCommand content, ReliableMessage rMsg, ID group) {
-        return false;
+        return groupHistoryTable.saveGroupHistory(content, rMsg, group);
     }
 
     @Override
     public List<Pair<GroupCommand, ReliableMessage>> getGroupHistories(ID group) {
-        return new ArrayList<>();
+        return groupHistoryTable.getGroupHistories(group);
     }
 
     @Override
     public Pair<ResetCommand, ReliableMessage> getResetCommandMessage(ID identifier) {
-        return new Pair<>(null, null);
+        return groupHistoryTable.getResetCommandMessage(identifier);
     }
 
     @Override
     public boolean clearGroupMemberHistories(ID group) {
-        return false;
+        return groupHistoryTable.clearGroupMemberHistories(group);
     }
 
     @Override
     public boolean clearGroupAdminHistories(ID group) {
-        return false;
+        return groupHistoryTable.clearGroupAdminHistories(group);
+    }
+
+    /**
+     *  Rebuild members by replaying the group histories after the last 'reset' command
+     *
+     * @param group - group ID
+     * @return empty list on 'reset' command not found
+     */
+    public List<ID> replayMembers(ID group) {
+        List<Pair<GroupCommand, ReliableMessage>> histories = groupHistoryTable.getGroupHistories(group);
+        int start = histories.size() - 1;
+        while (start >= 0 && !(histories.get(start).first instanceof ResetCommand)) {
+            --start;
+        }
+        if (start < 0) {
+            return new ArrayList<>();
+        }
+        Set<ID> members = new LinkedHashSet<>();
+        GroupCommand content;
+        List<ID> array;
+        for (int index = start; index < histories.size(); ++index) {
+            content = histories.get(index).first;
+            array = content.getMembers();
+            if (content instanceof ResetCommand || content instanceof InviteCommand) {
+                if (array != null) {
+                    members.addAll(array);
+                }
+            } else if (content instanceof ExpelCommand) {
+                if (array != null) {
+                    members.removeAll(array);
+                }
+            } else if (content instanceof QuitCommand) {
+                ReliableMessage rMsg = histories.get(index).second;
+                if (rMsg != null) {
+                    members.remove(rMsg.getSender());
+                }
+            }
+        }
+        return new ArrayList<>(members);
     }
 
     //
@@ -318,12 +417,12 @@ public class SharedDatabase implements AccountDBI, MessageDBI, SessionDBI, UserT
 
     @Override
     public Map<String, Object> getGroupKeys(ID group, ID sender) {
-        return null;
+        return groupKeysTable.getGroupKeys(group, sender);
     }
 
     @Override
     public boolean saveGroupKeys(ID group, ID sender, Map<String, Object> keys) {
-        return false;
+        return groupKeysTable.saveGroupKeys(group, sender, keys);
     }
 
     //
@@ -342,46 +441,46 @@ public class SharedDatabase implements AccountDBI, MessageDBI, SessionDBI, UserT
 
     @Override
     public List<ProviderInfo> allProviders() {
-        return null;
+        return providerTable.allProviders();
     }
 
     @Override
     public boolean addProvider(ID identifier, int chosen) {
-        return false;
+        return providerTable.addProvider(identifier, chosen);
     }
 
     @Override
     public boolean updateProvider(ID identifier, int chosen) {
-        return false;
+        return providerTable.updateProvider(identifier, chosen);
     }
 
     @Override
     public boolean removeProvider(ID identifier) {
-        return false;
+        return providerTable.removeProvider(identifier);
     }
 
     @Override
     public List<StationInfo> allStations(ID provider) {
-        return null;
+        return providerTable.allStations(provider);
     }
 
     @Override
     public boolean addStation(ID identifier, String host, int port, ID provider, int chosen) {
-        return false;
+        return providerTable.addStation(identifier, host, port, provider, chosen);
     }
 
     @Override
     public boolean updateStation(ID identifier, String host, int port, ID provider, int chosen) {
-        return false;
+        return providerTable.updateStation(identifier, host, port, provider, chosen);
     }
 
     @Override
     public boolean removeStation(String host, int port, ID provider) {
-        return false;
+        return providerTable.removeStation(host, port, provider);
     }
 
     @Override
     public boolean removeStations(ID provider) {
-        return false;
+        return providerTable.removeStations(provider);
     }
 }
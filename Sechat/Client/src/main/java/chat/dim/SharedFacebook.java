@@ -28,18 +28,23 @@ package chat.dim;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import chat.dim.crypto.EncryptKey;
 import chat.dim.crypto.PrivateKey;
 import chat.dim.database.AddressNameTable;
+import chat.dim.database.EntityCache;
 import chat.dim.database.UserTable;
 import chat.dim.dbi.AccountDBI;
 import chat.dim.format.PortableNetworkFile;
 import chat.dim.http.FileTransfer;
 import chat.dim.mkm.User;
+import chat.dim.protocol.Document;
 import chat.dim.protocol.ID;
+import chat.dim.protocol.Meta;
 import chat.dim.protocol.Visa;
 import chat.dim.type.Pair;
 
@@ -51,6 +56,91 @@ public final class SharedFacebook extends ClientFacebook {
         super(database);
     }
 
+    /**
+     *  Value derived from documents & meta of the entity,
+     *  it will be recalculated after any document/meta updated
+     */
+    private static final class Derived<V> {
+
+        final List<Document> documents;
+        final Meta meta;
+        final V value;
+
+        Derived(List<Document> documents, Meta meta, V value) {
+            super();
+            this.documents = documents;
+            this.meta = meta;
+            this.value = value;
+        }
+
+        // documents & meta are cached objects, replaced when updated
+        boolean isValid(List<Document> docs, Meta info) {
+            return documents == docs && meta == info;
+        }
+    }
+
+    // memory caches
+    private final EntityCache<ID, Derived<String>> nameCache = new EntityCache<>("names", 8192,
+            3600 * 1000, 3600 * 1000);
+    private final EntityCache<ID, Derived<EncryptKey>> visaKeyCache = new EntityCache<>("visa keys", 4096,
+            3600 * 1000, 3600 * 1000);
+
+    private final EntityCache.Loader<ID, Derived<String>> nameLoader = new EntityCache.Loader<ID, Derived<String>>() {
+        @Override
+        public Derived<String> load(ID identifier) {
+            List<Document> docs = getDocuments(identifier);
+            return new Derived<>(docs, null, SharedFacebook.super.getName(identifier));
+        }
+    };
+
+    private final EntityCache.Loader<ID, Derived<EncryptKey>> visaKeyLoader = new EntityCache.Loader<ID, Derived<EncryptKey>>() {
+        @Override
+        public Derived<EncryptKey> load(ID user) {
+            List<Document> docs = getDocuments(user);
+            Meta meta = getMeta(user);
+            return new Derived<>(docs, meta, SharedFacebook.super.getPublicKeyForEncryption(user));
+        }
+    };
+
+    @Override
+    public String getName(ID identifier) {
+        Derived<String> name = nameCache.get(identifier, nameLoader);
+        if (!name.isValid(getDocuments(identifier), null)) {
+            // documents updated
+            name = nameLoader.load(identifier);
+            nameCache.put(identifier, name);
+        }
+        return name.value;
+    }
+
+    /**
+     *  Load meta, documents & names of the entities in batch,
+     *  call it in background before showing a list of them
+     *
+     * @param entities - entity IDs
+     */
+    public void prefetch(Collection<ID> entities) {
+        AccountDBI db = getDatabase();
+        if (db instanceof SharedDatabase) {
+            ((SharedDatabase) db).prefetch(entities);
+        }
+        for (ID item : entities) {
+            // derived from the cached documents now
+            getName(item);
+        }
+    }
+
+    @Override
+    public EncryptKey getPublicKeyForEncryption(ID user) {
+        Derived<EncryptKey> key = visaKeyCache.get(user, visaKeyLoader);
+        if (!key.isValid(getDocuments(user), getMeta(user))) {
+            // visa or meta updated
+            key = visaKeyLoader.load(user);
+            visaKeyCache.put(user, key);
+        }
+        return key.value;
+    }
+
     @Override
     public ClientChecker getEntityChecker() {
         return (ClientChecker) super.getEntityChecker();
@@ -159,8 +249,18 @@ public final class SharedFacebook extends ClientFacebook {
             // already exists
             return false;
         }
+        AccountDBI db = getDatabase();
+        if (!(db instanceof SharedDatabase)) {
+            allContacts.add(contact);
+            return saveContacts(allContacts, user);
+        }
+        // update cache first, observers may reload contacts before this call returned
         allContacts.add(contact);
-        return saveContacts(allContacts, user);
+        if (((SharedDatabase) db).addContact(contact, user)) {
+            return true;
+        }
+        allContacts.remove(contact);
+        return false;
     }
 
     public boolean removeContact(ID contact, ID user) {
@@ -170,8 +270,19 @@ public final class SharedFacebook extends ClientFacebook {
             // not exists
             return false;
         }
+        AccountDBI db = getDatabase();
+        if (!(db instanceof SharedDatabase)) {
+            allContacts.remove(pos);
+            return saveContacts(allContacts, user);
+        }
+        // update cache first, observers may reload contacts before this call returned
         allContacts.remove(pos);
-        return saveContacts(allContacts, user);
+        if (((SharedDatabase) db).removeContact(contact, user)) {
+            return true;
+        }
+        // erase cache for reload
+        userContacts.remove(user);
+        return false;
     }
 
     //-------- Members
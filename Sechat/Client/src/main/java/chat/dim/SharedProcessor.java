@@ -25,6 +25,7 @@
  */
 package chat.dim;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import chat.dim.cpu.ClientProcessorCreator;
@@ -71,20 +72,49 @@ public class SharedProcessor extends ClientMessageProcessor {
                     Log.info("querying group: " + group + ", " + sender);
                     Command cmd1 = DocumentCommand.query(group);
                     getMessenger().sendContent(cmd1, null, sender, 1);
-                    Command cmd2 = GroupCommand.query(group);
-                    getMessenger().sendContent(cmd2, null, sender, 1);
+                    if (!restoreMembers(group)) {
+                        Command cmd2 = GroupCommand.query(group);
+                        getMessenger().sendContent(cmd2, null, sender, 1);
+                    }
                 }
             }
         }
         return super.processContent(content, rMsg);
     }
 
+    // rebuild members from local group histories, instead of querying them from others
+    private static boolean restoreMembers(ID group) {
+        SharedDatabase db = GlobalVariable.getInstance().database;
+        if (db.getMembers(group).size() > 0) {
+            return true;
+        }
+        List<ID> members = db.replayMembers(group);
+        if (members.isEmpty()) {
+            return false;
+        }
+        Log.info("group members restored from histories: " + group + ", " + members);
+        return db.saveMembers(members, group);
+    }
+
+    @Override
+    public List<ReliableMessage> processReliableMessage(ReliableMessage rMsg) {
+        List<ReliableMessage> responses = super.processReliableMessage(rMsg);
+        if (responses == null || responses.size() == 0) {
+            return responses;
+        }
+        // received messages are saved in batch,
+        // the receipts will be sent after they were stored
+        MessageDataSource mds = MessageDataSource.getInstance();
+        mds.deferResponses(responses);
+        return new ArrayList<>();
+    }
+
     @Override
     public List<InstantMessage> processInstantMessage(InstantMessage iMsg, ReliableMessage rMsg) {
         List<InstantMessage> responses = super.processInstantMessage(iMsg, rMsg);
-        // save instant message
+        // save instant message (in batch, flushed after the package processed)
         MessageDataSource mds = MessageDataSource.getInstance();
-        if (!mds.saveInstantMessage(iMsg)) {
+        if (!mds.saveReceivedMessage(iMsg)) {
             // error
             return null;
         }
@@ -25,6 +25,14 @@
  */
 package chat.dim.model;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 import chat.dim.GlobalVariable;
 import chat.dim.SharedFacebook;
 import chat.dim.mkm.Entity;
@@ -100,7 +108,90 @@ public final class Amanuensis {
         return chatBox.insertMessage(iMsg);
     }
 
-    public boolean saveReceipt(InstantMessage iMsg) {
+    /**
+     *  Save received messages in batch, and wait until all of them committed
+     *
+     * @param messages - instant messages and receipts
+     * @return false on any of them failed to save
+     */
+    public boolean saveInstantMessages(List<InstantMessage> messages) {
+        // group by conversation, keep the order
+        Map<ID, Conversation> chatBoxes = new HashMap<>();
+        Map<ID, List<InstantMessage>> batches = new LinkedHashMap<>();
+        List<InstantMessage> receipts = new ArrayList<>();
+        Conversation chatBox;
+        List<InstantMessage> array;
+        for (InstantMessage item : messages) {
+            if (item.getContent() instanceof ReceiptCommand) {
+                receipts.add(item);
+                continue;
+            }
+            chatBox = getConversation(item.getEnvelope());
+            if (chatBox == null) {
+                continue;
+            }
+            array = batches.get(chatBox.identifier);
+            if (array == null) {
+                array = new ArrayList<>();
+                batches.put(chatBox.identifier, array);
+                chatBoxes.put(chatBox.identifier, chatBox);
+            }
+            array.add(item);
+        }
+        // queue all batches first, so they can be committed together;
+        // receipts after messages, their original messages may be in the batches
+        Map<ID, Future<Integer>> futures = new LinkedHashMap<>();
+        for (Map.Entry<ID, List<InstantMessage>> entry : batches.entrySet()) {
+            chatBox = chatBoxes.get(entry.getKey());
+            futures.put(entry.getKey(), chatBox.insertMessages(entry.getValue()));
+        }
+        List<Conversation> receiptBoxes = new ArrayList<>(receipts.size());
+        List<Future<Boolean>> receiptFutures = new ArrayList<>(receipts.size());
+        for (InstantMessage item : receipts) {
+            chatBox = getConversation(getReceiptEnvelope(item));
+            receiptBoxes.add(chatBox);
+            receiptFutures.add(chatBox == null ? null : chatBox.saveReceipt(item));
+        }
+        boolean ok = true;
+        Integer count;
+        for (Map.Entry<ID, Future<Integer>> entry : futures.entrySet()) {
+            count = await(entry.getValue());
+            if (count == null) {
+                ok = false;
+            } else if (count > 0) {
+                chatBox = chatBoxes.get(entry.getKey());
+                chatBox.didInsertMessages(batches.get(entry.getKey()));
+            }
+        }
+        Future<Boolean> future;
+        Boolean found;
+        for (int index = 0; index < receipts.size(); ++index) {
+            future = receiptFutures.get(index);
+            if (future == null) {
+                continue;
+            }
+            found = await(future);
+            if (found == null) {
+                ok = false;
+            } else if (found) {
+                receiptBoxes.get(index).didSaveReceipt(receipts.get(index));
+            }
+        }
+        return ok;
+    }
+
+    // wait for the write, null on failed
+    private static <V> V await(Future<V> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // envelope of the original message, or the receipt's
+    private static Envelope getReceiptEnvelope(InstantMessage iMsg) {
         Envelope env = null;
         Content content = iMsg.getContent();
         if (content instanceof ReceiptCommand) {
@@ -110,10 +201,19 @@ public final class Amanuensis {
         if (env == null) {
             env = iMsg.getEnvelope();
         }
-        Conversation chatBox = getConversation(env);
+        return env;
+    }
+
+    public boolean saveReceipt(InstantMessage iMsg) {
+        Conversation chatBox = getConversation(getReceiptEnvelope(iMsg));
         if (chatBox == null) {
             return false;
         }
-        return chatBox.saveReceipt(iMsg);
+        Boolean ok = await(chatBox.saveReceipt(iMsg));
+        if (ok == null || !ok) {
+            return false;
+        }
+        chatBox.didSaveReceipt(iMsg);
+        return true;
     }
 }
@@ -27,12 +27,13 @@ package chat.dim.model;
 
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import chat.dim.GlobalVariable;
 import chat.dim.SharedFacebook;
+import chat.dim.database.MessageTable;
 import chat.dim.group.SharedGroupManager;
 import chat.dim.mkm.Entity;
-import chat.dim.protocol.ContentType;
 import chat.dim.protocol.EntityType;
 import chat.dim.protocol.ID;
 import chat.dim.protocol.InstantMessage;
@@ -95,30 +96,7 @@ public class Conversation {
     }
 
     public InstantMessage getLastVisibleMessage() {
-        // return database.lastMessage(this);
-        int count = numberOfMessages();
-        InstantMessage iMsg;
-        String msgType;
-        for (int index = count - 1; index >= 0; --index) {
-            iMsg = messageAtIndex(index);
-            if (iMsg == null) {
-                continue;
-            }
-            // FIXME: here will throw a NullPointerException
-            msgType = iMsg.getType();
-            if (ContentType.TEXT.equals(msgType) ||
-                    ContentType.FILE.equals(msgType) ||
-                    ContentType.IMAGE.equals(msgType) ||
-                    ContentType.AUDIO.equals(msgType) ||
-                    ContentType.VIDEO.equals(msgType) ||
-                    ContentType.PAGE.equals(msgType) ||
-                    ContentType.MONEY.equals(msgType) ||
-                    ContentType.TRANSFER.equals(msgType)) {
-                // got it
-                return iMsg;
-            }
-        }
-        return null;
+        return database.lastVisibleMessage(this);
     }
 
     // interfaces for ConversationDataSource
@@ -135,10 +113,22 @@ public class Conversation {
         return database.messageAtIndex(index, this);
     }
 
+    public MessageTable.MessagePage messagesBefore(long time, long rowid, int limit) {
+        return database.messagesBefore(time, rowid, limit, this);
+    }
+
     public boolean insertMessage(InstantMessage iMsg) {
         return database.insertMessage(iMsg, this);
     }
 
+    public Future<Integer> insertMessages(List<InstantMessage> messages) {
+        return database.insertMessages(messages, this);
+    }
+
+    public void didInsertMessages(List<InstantMessage> messages) {
+        database.didInsertMessages(messages, this);
+    }
+
     public boolean removeMessage(InstantMessage iMsg) {
         return database.removeMessage(iMsg, this);
     }
@@ -147,7 +137,11 @@ public class Conversation {
         return database.withdrawMessage(iMsg, this);
     }
 
-    public boolean saveReceipt(InstantMessage iMsg) {
+    public Future<Boolean> saveReceipt(InstantMessage iMsg) {
         return database.saveReceipt(iMsg, this);
     }
+
+    public void didSaveReceipt(InstantMessage iMsg) {
+        database.didSaveReceipt(iMsg, this);
+    }
 }
@@ -27,7 +27,9 @@ package chat.dim.model;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import chat.dim.GlobalVariable;
 import chat.dim.SharedFacebook;
@@ -119,6 +121,10 @@ public final class ConversationDatabase extends MessageBuilder {
         return messageTable.numberOfUnreadMessages(chatBox.identifier);
     }
 
+    public Map<ID, Integer> unreadCounts() {
+        return messageTable.unreadCounts();
+    }
+
     public boolean clearUnreadMessages(Conversation chatBox) {
         return messageTable.clearUnreadMessages(chatBox.identifier);
     }
@@ -127,6 +133,10 @@ public final class ConversationDatabase extends MessageBuilder {
         return messageTable.lastMessage(chatBox.identifier);
     }
 
+    public InstantMessage lastVisibleMessage(Conversation chatBox) {
+        return messageTable.lastVisibleMessage(chatBox.identifier);
+    }
+
     public InstantMessage lastReceivedMessage() {
         User user = getFacebook().getCurrentUser();
         if (user == null) {
@@ -139,6 +149,15 @@ public final class ConversationDatabase extends MessageBuilder {
         return messageTable.messageAtIndex(index, chatBox.identifier);
     }
 
+    public MessageTable.MessagePage messagesBefore(long time, long rowid, int limit, Conversation chatBox) {
+        return messageTable.messagesBefore(time, rowid, limit, chatBox.identifier);
+    }
+
+    public MessageTable.MessagePage searchMessages(String keywords, Conversation chatBox, long before, int limit) {
+        ID entity = chatBox == null ? null : chatBox.identifier;
+        return messageTable.searchMessages(keywords, entity, before, limit);
+    }
+
     private void postMessageUpdatedNotification(InstantMessage iMsg, ID identifier) {
         Map<String, Object> userInfo = new HashMap<>();
         userInfo.put("ID", identifier);
@@ -155,6 +174,24 @@ public final class ConversationDatabase extends MessageBuilder {
         return OK;
     }
 
+    /**
+     *  Queue messages of the chat box to be saved in one transaction,
+     *  call didInsertMessages() after the future completed
+     *
+     * @param messages - instant messages
+     * @param chatBox  - conversation
+     * @return future of the count of messages saved
+     */
+    public Future<Integer> insertMessages(List<InstantMessage> messages, Conversation chatBox) {
+        return messageTable.insertMessages(messages, chatBox.identifier);
+    }
+
+    public void didInsertMessages(List<InstantMessage> messages, Conversation chatBox) {
+        // one notification for the whole batch
+        InstantMessage last = messages.get(messages.size() - 1);
+        postMessageUpdatedNotification(last, chatBox.identifier);
+    }
+
     public boolean removeMessage(InstantMessage iMsg, Conversation chatBox) {
         boolean OK = messageTable.removeMessage(iMsg, chatBox.identifier);
         if (OK) {
@@ -171,23 +208,30 @@ public final class ConversationDatabase extends MessageBuilder {
         return OK;
     }
 
-    public boolean saveReceipt(InstantMessage iMsg, Conversation chatBox) {
-        boolean OK = messageTable.saveReceipt(iMsg, chatBox.identifier);
-        if (OK) {
-            ID entity = chatBox.identifier;
-            // FIXME: check for origin conversation
-            if (entity.isUser()) {
-                ReceiptCommand receipt = (ReceiptCommand) iMsg.getContent();
-                Envelope env = receipt.getOriginalEnvelope();
-                if (env != null) {
-                    ID sender = env.getSender();
-                    if (sender != null && sender.equals(iMsg.getReceiver())) {
-                        entity = env.getReceiver();
-                    }
+    /**
+     *  Queue the receipt to be saved, call didSaveReceipt() after the future completed
+     *
+     * @param iMsg    - message with receipt content
+     * @param chatBox - conversation
+     * @return future of true while target message found
+     */
+    public Future<Boolean> saveReceipt(InstantMessage iMsg, Conversation chatBox) {
+        return messageTable.saveReceipt(iMsg, chatBox.identifier);
+    }
+
+    public void didSaveReceipt(InstantMessage iMsg, Conversation chatBox) {
+        ID entity = chatBox.identifier;
+        // FIXME: check for origin conversation
+        if (entity.isUser()) {
+            ReceiptCommand receipt = (ReceiptCommand) iMsg.getContent();
+            Envelope env = receipt.getOriginalEnvelope();
+            if (env != null) {
+                ID sender = env.getSender();
+                if (sender != null && sender.equals(iMsg.getReceiver())) {
+                    entity = env.getReceiver();
                 }
             }
-            postMessageUpdatedNotification(iMsg, entity);
         }
-        return OK;
+        postMessageUpdatedNotification(iMsg, entity);
     }
 }
@@ -29,6 +29,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import chat.dim.GlobalVariable;
 import chat.dim.SharedFacebook;
@@ -95,17 +98,15 @@ public class MessageDataSource implements Observer {
                 }
             }
 
-            // processing incoming messages
+            // processing incoming messages,
+            // receipts are sent after the messages stored
             List<ReliableMessage> incoming = incomingMessages.remove(entity);
             if (incoming != null) {
                 List<ReliableMessage> responses;
                 for (ReliableMessage item : incoming) {
                     responses = messenger.processReliableMessage(item);
-                    if (responses == null || responses.size() == 0) {
-                        continue;
-                    }
-                    for (ReliableMessage res : responses) {
-                        messenger.sendReliableMessage(res, Departure.Priority.SLOWER.value);
+                    if (responses != null && responses.size() > 0) {
+                        deferResponses(responses);
                     }
                 }
             }
@@ -120,8 +121,8 @@ public class MessageDataSource implements Observer {
         }
     }
 
-    public boolean saveInstantMessage(InstantMessage iMsg) {
-        Content content = iMsg.getContent();
+    // commands which will be processed by CPUs, or need not to be saved
+    private static boolean isTransient(Content content) {
         // TODO: check message type
         //       only save normal message and group commands
         //       ignore 'Handshake', ...
@@ -178,6 +179,14 @@ public class MessageDataSource implements Observer {
             // FIXME: same query command sent to different members?
             return true;
         }
+        return false;
+    }
+
+    public boolean saveInstantMessage(InstantMessage iMsg) {
+        Content content = iMsg.getContent();
+        if (isTransient(content)) {
+            return true;
+        }
 
         Amanuensis clerk = Amanuensis.getInstance();
 
@@ -188,6 +197,118 @@ public class MessageDataSource implements Observer {
         }
     }
 
+    // received messages waiting to be saved in batch
+    private final List<InstantMessage> receivedMessages = new ArrayList<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+
+    private static final long BATCH_DELAY = 200;  // milliseconds
+    private static final int BATCH_SIZE = 64;
+
+    // responses waiting for the received messages stored, guarded by 'receivedMessages'
+    private final List<Responses> pendingResponses = new ArrayList<>();
+    // count of batches finished, and the last failed one
+    private int flushed = 0;
+    private int lastFailure = 0;
+
+    private static final class Responses {
+
+        final List<ReliableMessage> messages;
+        // batches finished when deferred
+        final int flushed;
+
+        Responses(List<ReliableMessage> messages, int flushed) {
+            super();
+            this.messages = messages;
+            this.flushed = flushed;
+        }
+    }
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     *  Save received message (or receipt) in batch,
+     *  so the offline messages burst after login will be saved in few transactions;
+     *  receipts of them are sent by deferResponses() after stored
+     *
+     * @param iMsg - received message
+     * @return false on error
+     */
+    public boolean saveReceivedMessage(InstantMessage iMsg) {
+        Content content = iMsg.getContent();
+        if (isTransient(content)) {
+            return true;
+        }
+        int count;
+        synchronized (receivedMessages) {
+            receivedMessages.add(iMsg);
+            count = receivedMessages.size();
+        }
+        if (count == 1) {
+            flusher.schedule(flushTask, BATCH_DELAY, TimeUnit.MILLISECONDS);
+        } else if (count == BATCH_SIZE) {
+            flusher.execute(flushTask);
+        }
+        return true;
+    }
+
+    /**
+     *  Send responses (receipts) after the received messages stored,
+     *  they are sent with the batch of messages after it, so a burst costs one commit
+     *
+     * @param responses - responses of received messages
+     */
+    public void deferResponses(List<ReliableMessage> responses) {
+        boolean idle;
+        synchronized (receivedMessages) {
+            pendingResponses.add(new Responses(responses, flushed));
+            idle = receivedMessages.size() == 0;
+        }
+        if (idle) {
+            // no batch scheduled, send them after the one flushing (if any) finished
+            flusher.execute(flushTask);
+        }
+    }
+
+    // save a batch of received messages, then send the responses deferred before it
+    private synchronized void flush() {
+        List<InstantMessage> messages;
+        List<Responses> responses;
+        synchronized (receivedMessages) {
+            messages = new ArrayList<>(receivedMessages);
+            receivedMessages.clear();
+            responses = new ArrayList<>(pendingResponses);
+            pendingResponses.clear();
+        }
+        boolean ok = true;
+        if (messages.size() > 0) {
+            Amanuensis clerk = Amanuensis.getInstance();
+            ok = clerk.saveInstantMessages(messages);
+        }
+        synchronized (receivedMessages) {
+            ++flushed;
+            if (!ok) {
+                Log.error("failed to save received messages: " + messages.size());
+                lastFailure = flushed;
+            }
+        }
+        SharedMessenger messenger = GlobalVariable.getInstance().messenger;
+        for (Responses item : responses) {
+            if (!ok || lastFailure > item.flushed) {
+                // messages of them may be in the failed batch, the senders will send them again
+                Log.error("failed to save received messages, responses dropped: " + item.messages.size());
+                continue;
+            }
+            for (ReliableMessage res : item.messages) {
+                messenger.sendReliableMessage(res, Departure.Priority.SLOWER.value);
+            }
+        }
+    }
+
     public void suspendMessage(ReliableMessage rMsg) {
         // save this message in a queue waiting sender's meta response
         ID waiting = ID.parse(rMsg.get("waiting"));
@@ -122,6 +122,19 @@ public final class NetworkDatabase {
         nc.postNotification(NotificationNames.ServiceProviderUpdated, this, userInfo);
         return true;
     }
+
+    /**
+     *  Record probing result of the station
+     *
+     * @param host - station host
+     * @param port - station port
+     * @param rtt - round trip time (milliseconds), -1 on failed
+     * @return true on success
+     */
+    public boolean updateLatency(String host, int port, long rtt) {
+        return providerTable.updateLatency(host, port, rtt);
+    }
+
     public boolean removeStation(ID sp, ID station, String host, int port) {
         if (!providerTable.removeStation(sp, station)) {
             return false;
@@ -0,0 +1,157 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.model;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import chat.dim.database.ProviderTable;
+import chat.dim.log.Log;
+
+/**
+ *  Station Prober
+ *  ~~~~~~~~~~~~~~
+ *
+ *  Measures the round trip time of connecting stations, records the results
+ *  into the provider table, and chooses the healthy station with lowest latency.
+ */
+public final class StationProber {
+
+    // connect timeout (milliseconds)
+    public static int TIMEOUT = 5000;
+
+    private static final StationProber ourInstance = new StationProber();
+    public static StationProber getInstance() { return ourInstance; }
+    private StationProber() {
+        super();
+    }
+
+    /**
+     *  Probe stations in parallel, and wait for the results
+     *
+     * @param stations - station info list, rtt and failures will be updated
+     */
+    public void probe(List<ProviderTable.StationInfo> stations) {
+        List<Thread> threads = new ArrayList<>();
+        Thread thread;
+        for (final ProviderTable.StationInfo item : stations) {
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    probe(item);
+                }
+            }, "StationProber-" + item.host + ":" + item.port);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+        // each probing will stop after timeout
+        long deadline = System.currentTimeMillis() + TIMEOUT + 1000;
+        long remaining;
+        try {
+            for (Thread item : threads) {
+                remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                item.join(remaining);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Probe the station and record the result
+     *
+     * @param station - station info
+     * @return round trip time (milliseconds), -1 on failed
+     */
+    public long probe(ProviderTable.StationInfo station) {
+        long rtt = connect(station.host, station.port);
+        synchronized (station) {
+            station.rtt = rtt;
+            station.failures = rtt < 0 ? station.failures + 1 : 0;
+        }
+        NetworkDatabase database = NetworkDatabase.getInstance();
+        database.updateLatency(station.host, station.port, rtt);
+        Log.info("station probed: " + station.host + ":" + station.port + ", rtt: " + rtt + " ms");
+        return rtt;
+    }
+
+    private static long connect(String host, int port) {
+        if (host == null || port <= 0) {
+            return -1;
+        }
+        Socket socket = new Socket();
+        try {
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            long start = System.nanoTime();
+            socket.connect(address, TIMEOUT);
+            return (System.nanoTime() - start) / 1000000;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.error("failed to connect station: " + host + ":" + port + ", " + e);
+            return -1;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     *  Choose the healthy station with lowest latency;
+     *  if all failed, choose the one with fewest failures
+     *
+     * @param stations - probed stations, the chosen one first
+     * @return null on empty
+     */
+    public ProviderTable.StationInfo choose(List<ProviderTable.StationInfo> stations) {
+        ProviderTable.StationInfo fastest = null;
+        ProviderTable.StationInfo fallback = null;
+        long rtt;
+        int failures;
+        for (ProviderTable.StationInfo item : stations) {
+            synchronized (item) {
+                rtt = item.rtt;
+                failures = item.failures;
+            }
+            if (rtt >= 0) {
+                if (fastest == null || rtt < fastest.rtt) {
+                    fastest = item;
+                }
+            } else if (fallback == null || failures < fallback.failures) {
+                fallback = item;
+            }
+        }
+        return fastest != null ? fastest : fallback;
+    }
+}
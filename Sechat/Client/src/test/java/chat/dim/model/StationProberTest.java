@@ -0,0 +1,214 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.model;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import chat.dim.database.ProviderTable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StationProberTest {
+
+    private static final String HOST = "127.0.0.1";
+
+    private final StationProber prober = StationProber.getInstance();
+
+    // latencies recorded into the provider table
+    private final List<Object[]> updates = Collections.synchronizedList(new ArrayList<Object[]>());
+
+    private final List<ServerSocket> servers = new ArrayList<>();
+    private final List<Socket> sockets = new ArrayList<>();
+
+    private int timeout;
+
+    @Before
+    public void setUp() {
+        timeout = StationProber.TIMEOUT;
+        StationProber.TIMEOUT = 500;
+        // records 'updateLatency' only
+        InvocationHandler handler = new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("updateLatency")) {
+                    updates.add(args);
+                    return true;
+                }
+                return method.getReturnType() == boolean.class ? false : null;
+            }
+        };
+        NetworkDatabase.getInstance().providerTable = (ProviderTable) Proxy.newProxyInstance(
+                ProviderTable.class.getClassLoader(), new Class[]{ProviderTable.class}, handler);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        StationProber.TIMEOUT = timeout;
+        NetworkDatabase.getInstance().providerTable = null;
+        for (Socket item : sockets) {
+            item.close();
+        }
+        for (ServerSocket item : servers) {
+            item.close();
+        }
+    }
+
+    // station stand-in, connections are completed by the kernel without accepting
+    private int listen(int backlog) throws IOException {
+        ServerSocket server = new ServerSocket(0, backlog, InetAddress.getByName(HOST));
+        servers.add(server);
+        return server.getLocalPort();
+    }
+
+    // port with nothing listening on
+    private static int closedPort() throws IOException {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName(HOST));
+        int port = server.getLocalPort();
+        server.close();
+        return port;
+    }
+
+    // station whose accept queue is full, new connections will time out
+    private int stuck() throws IOException {
+        int port = listen(1);
+        Socket socket;
+        for (int index = 0; index < 8; ++index) {
+            socket = new Socket();
+            sockets.add(socket);
+            try {
+                socket.connect(servers.get(servers.size() - 1).getLocalSocketAddress(), 200);
+            } catch (IOException e) {
+                // queue is full
+                break;
+            }
+        }
+        return port;
+    }
+
+    private static ProviderTable.StationInfo station(int port) {
+        return new ProviderTable.StationInfo(null, "station-" + port, HOST, port, 0);
+    }
+
+    private static ProviderTable.StationInfo station(long rtt, int failures) {
+        ProviderTable.StationInfo info = station(9394);
+        info.rtt = rtt;
+        info.failures = failures;
+        return info;
+    }
+
+    @Test
+    public void testProbeSuccess() throws IOException {
+        int port = listen(50);
+        ProviderTable.StationInfo info = station(port);
+        info.failures = 3;
+        long rtt = prober.probe(info);
+        assertTrue(rtt >= 0);
+        assertEquals(rtt, info.rtt);
+        assertEquals(0, info.failures);
+        assertEquals(1, updates.size());
+        assertEquals(HOST, updates.get(0)[0]);
+        assertEquals(port, updates.get(0)[1]);
+        assertEquals(rtt, updates.get(0)[2]);
+    }
+
+    @Test
+    public void testProbeRefused() throws IOException {
+        ProviderTable.StationInfo info = station(closedPort());
+        assertEquals(-1, prober.probe(info));
+        assertEquals(-1, info.rtt);
+        assertEquals(1, info.failures);
+        assertEquals(-1L, updates.get(0)[2]);
+        // continuous failures
+        prober.probe(info);
+        assertEquals(2, info.failures);
+    }
+
+    @Test
+    public void testProbeTimeout() throws IOException {
+        ProviderTable.StationInfo info = station(stuck());
+        long start = System.currentTimeMillis();
+        assertEquals(-1, prober.probe(info));
+        long cost = System.currentTimeMillis() - start;
+        assertTrue("returned before timeout: " + cost, cost >= StationProber.TIMEOUT - 50);
+        assertEquals(1, info.failures);
+        assertEquals(-1L, updates.get(0)[2]);
+    }
+
+    @Test
+    public void testProbeAll() throws IOException {
+        List<ProviderTable.StationInfo> stations = new ArrayList<>();
+        stations.add(station(closedPort()));
+        stations.add(station(listen(50)));
+        stations.add(station(stuck()));
+        long start = System.currentTimeMillis();
+        prober.probe(stations);
+        long cost = System.currentTimeMillis() - start;
+        // in parallel, waits for the slowest one only
+        assertTrue("probed one by one: " + cost, cost < StationProber.TIMEOUT * 2);
+        assertEquals(3, updates.size());
+        assertSame(stations.get(1), prober.choose(stations));
+    }
+
+    @Test
+    public void testChooseLowestRtt() {
+        List<ProviderTable.StationInfo> stations = new ArrayList<>();
+        stations.add(station(120, 0));
+        stations.add(station(-1, 0));
+        stations.add(station(35, 0));
+        stations.add(station(80, 0));
+        assertSame(stations.get(2), prober.choose(stations));
+    }
+
+    @Test
+    public void testChooseFewestFailures() {
+        List<ProviderTable.StationInfo> stations = new ArrayList<>();
+        stations.add(station(-1, 4));
+        stations.add(station(-1, 1));
+        stations.add(station(-1, 2));
+        assertSame(stations.get(1), prober.choose(stations));
+    }
+
+    @Test
+    public void testChooseEmpty() {
+        assertNull(prober.choose(new ArrayList<ProviderTable.StationInfo>()));
+    }
+}
@@ -27,6 +27,7 @@ package chat.dim;
 
 import chat.dim.compat.LibraryLoader;
 import chat.dim.plugins.CryptoPluginLoader;
+import chat.dim.protocol.ID;
 
 class AppLibraryLoader extends LibraryLoader {
 
@@ -40,6 +41,8 @@ class AppLibraryLoader extends LibraryLoader {
    public void run() {
       super.run();
       cryptoPluginLoader.run();
+      // share ID instances parsed from the same string
+      ID.setFactory(new InternedIDFactory());
    }
 
 }
@@ -0,0 +1,114 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import chat.dim.compat.EntityIDFactory;
+import chat.dim.protocol.Address;
+import chat.dim.protocol.ID;
+
+/**
+ *  ID factory with interning pool
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  The same ID string always gets the same ID object (with its parsed address & type),
+ *  so the IDs loaded from database share instances with the ones used as keys in caches;
+ *  the pool holds IDs weakly, an ID no longer used anywhere will be released by GC.
+ *
+ *  The pool is the only cache: the base factory keeps every ID it made in a strong map,
+ *  so IDs are made by a temporary factory instead of 'super'.
+ */
+final class InternedIDFactory extends EntityIDFactory {
+
+    private final ConcurrentMap<String, IDReference> pool = new ConcurrentHashMap<>();
+    private final ReferenceQueue<ID> queue = new ReferenceQueue<>();
+
+    private static final class IDReference extends WeakReference<ID> {
+
+        final String key;
+
+        IDReference(String key, ID identifier, ReferenceQueue<ID> queue) {
+            super(identifier, queue);
+            this.key = key;
+        }
+    }
+
+    // only for the IDs missed in the pool, dropped with the IDs it made
+    private static EntityIDFactory maker() {
+        return new EntityIDFactory();
+    }
+
+    @Override
+    public ID parseIdentifier(String identifier) {
+        IDReference ref = pool.get(identifier);
+        ID id = ref == null ? null : ref.get();
+        if (id == null) {
+            id = maker().parseIdentifier(identifier);
+            if (id != null) {
+                id = intern(identifier, id);
+            }
+        }
+        return id;
+    }
+
+    @Override
+    public ID createIdentifier(String name, Address address, String terminal) {
+        ID id = maker().createIdentifier(name, address, terminal);
+        return id == null ? null : intern(id.toString(), id);
+    }
+
+    private ID intern(String key, ID identifier) {
+        purge();
+        IDReference fresh = new IDReference(key, identifier, queue);
+        IDReference ref;
+        ID exists;
+        while ((ref = pool.putIfAbsent(key, fresh)) != null) {
+            exists = ref.get();
+            if (exists != null) {
+                // interned by another thread
+                return exists;
+            }
+            if (pool.replace(key, ref, fresh)) {
+                break;
+            }
+        }
+        return identifier;
+    }
+
+    // remove entries whose IDs were released
+    private void purge() {
+        Reference<? extends ID> ref;
+        while ((ref = queue.poll()) != null) {
+            IDReference item = (IDReference) ref;
+            pool.remove(item.key, item);
+        }
+    }
+}
@@ -30,12 +30,26 @@
  */
 package chat.dim.crypto;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import chat.dim.database.MsgKeyTable;
 import chat.dim.protocol.ID;
 
+/**
+ *  Cipher keys cache
+ *  ~~~~~~~~~~~~~~~~~
+ *
+ *  Keys are looked up without locking; when the keys exceed MAX_KEYS,
+ *  the least recently used ones are dropped from memory, they are still in the key table.
+ */
 public final class KeyStore implements MsgKeyTable {
 
     private static final KeyStore ourInstance = new KeyStore();
@@ -46,8 +60,50 @@ public final class KeyStore implements MsgKeyTable {
 
     public MsgKeyTable keyTable = null;
 
+    // max keys in memory
+    public static int MAX_KEYS = 1024;
+
     // memory caches
-    private final Map<ID, Map<ID, SymmetricKey>> keyMap = new HashMap<>();
+    private final ConcurrentMap<Direction, Entry> keyMap = new ConcurrentHashMap<>();
+
+    // logical clock for least recently used
+    private final AtomicLong clock = new AtomicLong(0);
+    // only one thread evicts at a time, the others just skip
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    // statistics for packing (generate) & unpacking
+    private final AtomicLong encryptHits = new AtomicLong(0);
+    private final AtomicLong encryptMisses = new AtomicLong(0);
+    private final AtomicLong decryptHits = new AtomicLong(0);
+    private final AtomicLong decryptMisses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    private static final class Entry {
+
+        final SymmetricKey key;
+        volatile long accessed;
+
+        Entry(SymmetricKey key, long accessed) {
+            super();
+            this.key = key;
+            this.accessed = accessed;
+        }
+    }
+
+    // entry with its access time at the moment of evicting
+    private static final class Candidate {
+
+        final Direction direction;
+        final Entry entry;
+        final long accessed;
+
+        Candidate(Direction direction, Entry entry, long accessed) {
+            super();
+            this.direction = direction;
+            this.entry = entry;
+            this.accessed = accessed;
+        }
+    }
 
     //
     //  CipherKeyDelegate
@@ -59,31 +115,30 @@ public final class KeyStore implements MsgKeyTable {
             // broadcast message has no key
             return PlainKey.getInstance();
         }
-        SymmetricKey key;
+        Direction direction = new Direction(sender, receiver);
         // try from memory cache
-        Map<ID, SymmetricKey> table = keyMap.get(sender);
-        if (table == null) {
-            table = new HashMap<>();
-            keyMap.put(sender, table);
-        } else {
-            key = table.get(receiver);
-            if (key != null) {
-                return key;
-            }
+        Entry entry = keyMap.get(direction);
+        if (entry != null) {
+            entry.accessed = clock.incrementAndGet();
+            (generate ? encryptHits : decryptHits).incrementAndGet();
+            return entry.key;
         }
+        (generate ? encryptMisses : decryptMisses).incrementAndGet();
         // try from database
-        key = keyTable.getCipherKey(sender, receiver, generate);
+        SymmetricKey key = keyTable.getCipherKey(sender, receiver, generate);
         if (key != null) {
             // cache it
-            table.put(receiver, key);
+            return cache(direction, key, false);
         } else if (generate) {
-            // generate new key and store it
+            // generate new key, store it only if no other thread did it
             key = SymmetricKey.generate(SymmetricAlgorithms.AES);
-            keyTable.cacheCipherKey(sender, receiver, key);
-            // cache it
-            table.put(receiver, key);
+            SymmetricKey exists = cache(direction, key, false);
+            if (exists == key) {
+                keyTable.cacheCipherKey(sender, receiver, key);
+            }
+            return exists;
         }
-        return key;
+        return null;
     }
 
     @Override
@@ -95,11 +150,64 @@ public final class KeyStore implements MsgKeyTable {
         // save into database
         keyTable.cacheCipherKey(sender, receiver, key);
         // store into memory cache
-        Map<ID, SymmetricKey> table = keyMap.get(sender);
-        if (table == null) {
-            table = new HashMap<>();
-            keyMap.put(sender, table);
+        cache(new Direction(sender, receiver), key, true);
+    }
+
+    // store into memory cache, return the cached key
+    private SymmetricKey cache(Direction direction, SymmetricKey key, boolean replace) {
+        Entry entry = new Entry(key, clock.incrementAndGet());
+        if (replace) {
+            keyMap.put(direction, entry);
+        } else {
+            Entry exists = keyMap.putIfAbsent(direction, entry);
+            if (exists != null) {
+                return exists.key;
+            }
+        }
+        if (keyMap.size() > MAX_KEYS) {
+            evict();
+        }
+        return key;
+    }
+
+    // drop least recently used keys, down to 3/4 of the capacity
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
         }
-        table.put(receiver, key);
+        try {
+            List<Candidate> array = new ArrayList<>(keyMap.size());
+            for (Map.Entry<Direction, Entry> item : keyMap.entrySet()) {
+                // encrypting & decrypting keep touching 'accessed', sort the values copied
+                array.add(new Candidate(item.getKey(), item.getValue(), item.getValue().accessed));
+            }
+            int count = array.size() - MAX_KEYS * 3 / 4;
+            if (count <= 0) {
+                return;
+            }
+            Collections.sort(array, new Comparator<Candidate>() {
+                @Override
+                public int compare(Candidate c1, Candidate c2) {
+                    return c1.accessed < c2.accessed ? -1 : (c1.accessed == c2.accessed ? 0 : 1);
+                }
+            });
+            Candidate item;
+            for (int index = 0; index < count; ++index) {
+                item = array.get(index);
+                if (keyMap.remove(item.direction, item.entry)) {
+                    evictions.incrementAndGet();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "<KeyStore keys=" + keyMap.size()
+                + " encrypt=\"" + encryptHits.get() + "/" + encryptMisses.get() + "\""
+                + " decrypt=\"" + decryptHits.get() + "/" + decryptMisses.get() + "\""
+                + " evictions=" + evictions.get() + " />";
     }
 }
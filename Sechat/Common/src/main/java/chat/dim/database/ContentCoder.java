@@ -0,0 +1,287 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import chat.dim.format.JSON;
+
+/**
+ *  Compact binary encoding for message content
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Each value is a type tag followed by its body:
+ *      integer - zigzag varint
+ *      double  - 8 bytes, big endian
+ *      string  - varint length + UTF-8 bytes
+ *      map     - varint count + (key, value) pairs
+ *      list    - varint count + values
+ *      other   - JSON string
+ *
+ *  Keys of map are encoded as varint n:
+ *      n is odd  - index (n >> 1) of the common keys below
+ *      n is even - string with length (n >> 1)
+ */
+public final class ContentCoder {
+
+    // value of 'format' in t_message
+    public static final int FORMAT_JSON = 0;
+    public static final int FORMAT_BINARY = 1;
+    // JSON content failed to convert, still read as JSON
+    public static final int FORMAT_ERROR = 2;
+
+    private static final int NULL = 0;
+    private static final int FALSE = 1;
+    private static final int TRUE = 2;
+    private static final int INTEGER = 3;
+    private static final int DOUBLE = 4;
+    private static final int STRING = 5;
+    private static final int MAP = 6;
+    private static final int LIST = 7;
+    private static final int OTHER = 8;
+
+    // NOTICE: append only, the indexes are stored in database
+    private static final String[] KEYS = {
+            "type", "sn", "time", "group", "text",
+            "command", "ID", "did", "meta", "document",
+            "members", "filename", "URL", "password", "data",
+            "duration", "snapshot", "thumbnail", "title", "icon",
+            "desc", "currency", "amount", "message", "signature",
+            "sender", "receiver", "traces", "key", "algorithm",
+    };
+    private static final Map<String, Integer> KEY_INDEXES = new HashMap<>();
+    static {
+        for (int index = 0; index < KEYS.length; ++index) {
+            KEY_INDEXES.put(KEYS[index], index);
+        }
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //
+    //  Encoding
+    //
+
+    public static byte[] encode(Map<String, Object> content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        writeMap(out, content);
+        return out.toByteArray();
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeKey(ByteArrayOutputStream out, String key) {
+        Integer index = KEY_INDEXES.get(key);
+        if (index != null) {
+            writeVarInt(out, (index << 1) | 1);
+        } else {
+            byte[] bytes = key.getBytes(UTF8);
+            writeVarInt(out, bytes.length << 1);
+            writeBytes(out, bytes);
+        }
+    }
+
+    private static void writeMap(ByteArrayOutputStream out, Map<?, ?> map) {
+        writeVarInt(out, map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeKey(out, entry.getKey().toString());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, Object value) {
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            long number = ((Number) value).longValue();
+            out.write(INTEGER);
+            // zigzag
+            writeVarInt(out, (number << 1) ^ (number >> 63));
+        } else if (value instanceof Number) {
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            out.write(DOUBLE);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift) & 0xFF);
+            }
+        } else if (value instanceof String) {
+            byte[] bytes = ((String) value).getBytes(UTF8);
+            out.write(STRING);
+            writeVarInt(out, bytes.length);
+            writeBytes(out, bytes);
+        } else if (value instanceof Map) {
+            out.write(MAP);
+            writeMap(out, (Map<?, ?>) value);
+        } else if (value instanceof List) {
+            List<?> array = (List<?>) value;
+            out.write(LIST);
+            writeVarInt(out, array.size());
+            for (Object item : array) {
+                writeValue(out, item);
+            }
+        } else {
+            // ID, Mapper, ...
+            byte[] bytes = JSON.encode(value).getBytes(UTF8);
+            out.write(OTHER);
+            writeVarInt(out, bytes.length);
+            writeBytes(out, bytes);
+        }
+    }
+
+    //
+    //  Decoding
+    //
+
+    /**
+     *  Decode content
+     *
+     * @param data - binary content
+     * @return content info
+     * @throws IndexOutOfBoundsException on data error
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> decode(byte[] data) {
+        Reader reader = new Reader(data);
+        return (Map<String, Object>) reader.readMap();
+    }
+
+    private static final class Reader {
+
+        private final byte[] data;
+        private int offset = 0;
+
+        Reader(byte[] data) {
+            super();
+            this.data = data;
+        }
+
+        private int readByte() {
+            if (offset >= data.length) {
+                throw new IndexOutOfBoundsException("content data error: " + offset + ", " + data.length);
+            }
+            return data[offset++] & 0xFF;
+        }
+
+        private long readVarInt() {
+            long value = 0;
+            int shift = 0;
+            int ch;
+            do {
+                ch = readByte();
+                value |= (long) (ch & 0x7F) << shift;
+                shift += 7;
+            } while ((ch & 0x80) != 0);
+            return value;
+        }
+
+        private String readString(int length) {
+            if (length < 0 || offset + length > data.length) {
+                throw new IndexOutOfBoundsException("content data error: " + offset + ", " + length);
+            }
+            String string = new String(data, offset, length, UTF8);
+            offset += length;
+            return string;
+        }
+
+        private String readKey() {
+            int n = (int) readVarInt();
+            if ((n & 1) == 1) {
+                return KEYS[n >> 1];
+            }
+            return readString(n >> 1);
+        }
+
+        Map<String, Object> readMap() {
+            int count = (int) readVarInt();
+            Map<String, Object> map = new HashMap<>(count * 2);
+            String key;
+            for (int index = 0; index < count; ++index) {
+                key = readKey();
+                map.put(key, readValue());
+            }
+            return map;
+        }
+
+        private Object readValue() {
+            int tag = readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case INTEGER: {
+                    long zigzag = readVarInt();
+                    long number = (zigzag >>> 1) ^ -(zigzag & 1);
+                    if (number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE) {
+                        return (int) number;
+                    }
+                    return number;
+                }
+                case DOUBLE: {
+                    long bits = 0;
+                    for (int index = 0; index < 8; ++index) {
+                        bits = (bits << 8) | readByte();
+                    }
+                    return Double.longBitsToDouble(bits);
+                }
+                case STRING:
+                    return readString((int) readVarInt());
+                case MAP:
+                    return readMap();
+                case LIST: {
+                    int count = (int) readVarInt();
+                    List<Object> array = new ArrayList<>(count);
+                    for (int index = 0; index < count; ++index) {
+                        array.add(readValue());
+                    }
+                    return array;
+                }
+                case OTHER:
+                    return JSON.decode(readString((int) readVarInt()));
+                default:
+                    throw new IndexOutOfBoundsException("content data error, unknown tag: " + tag);
+            }
+        }
+    }
+}
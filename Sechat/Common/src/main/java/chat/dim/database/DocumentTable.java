@@ -25,7 +25,17 @@
  */
 package chat.dim.database;
 
+import java.util.Collection;
+
 import chat.dim.dbi.DocumentDBI;
+import chat.dim.protocol.ID;
 
 public interface DocumentTable extends DocumentDBI {
+
+    /**
+     *  Load documents of the entities into memory cache in batch
+     *
+     * @param entities - entity IDs
+     */
+    void prefetchDocuments(Collection<ID> entities);
 }
@@ -0,0 +1,311 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Bounded memory cache for entities (meta, documents, names, keys, ...)
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Keys are spread into stripes, each stripe is a small LRU map guarded by its own lock,
+ *  so threads looking up different entities seldom wait for each other.
+ *  Values expire after the life span; null values (entity not found) are cached too,
+ *  but with a shorter life span, so the database won't be queried again on every miss.
+ *
+ * @param <K> - entity ID
+ * @param <V> - cached value
+ */
+public final class EntityCache<K, V> {
+
+    // stripes count, power of 2
+    private static final int STRIPES = 16;
+
+    private final String name;
+    private final long lifeSpan;          // milliseconds
+    private final long negativeLifeSpan;  // milliseconds
+
+    private final Stripe<K, V>[] stripes;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong expirations = new AtomicLong(0);
+
+    /**
+     *  Create entity cache
+     *
+     * @param name             - cache name for statistics
+     * @param maxSize          - max entries in memory
+     * @param lifeSpan         - milliseconds to expire a value
+     * @param negativeLifeSpan - milliseconds to expire a null value
+     */
+    @SuppressWarnings("unchecked")
+    public EntityCache(String name, int maxSize, long lifeSpan, long negativeLifeSpan) {
+        super();
+        this.name = name;
+        this.lifeSpan = lifeSpan;
+        this.negativeLifeSpan = negativeLifeSpan;
+        int capacity = Math.max(1, (maxSize + STRIPES - 1) / STRIPES);
+        stripes = new Stripe[STRIPES];
+        for (int index = 0; index < STRIPES; ++index) {
+            stripes[index] = new Stripe<>(capacity);
+        }
+    }
+
+    /**
+     *  Load value for the entity when not cached
+     *
+     * @param <K> - entity ID
+     * @param <V> - loaded value
+     */
+    public interface Loader<K, V> {
+
+        /**
+         *  Load value from database
+         *
+         * @param key - entity ID
+         * @return null on not found
+         */
+        V load(K key);
+    }
+
+    private static final class Holder<V> {
+
+        final V value;
+        final long expires;
+
+        Holder(V value, long expires) {
+            super();
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    // access ordered, least recently used first
+    private static final class Stripe<K, V> extends LinkedHashMap<K, Holder<V>> {
+
+        private final int capacity;
+
+        // increased for each update, to drop values loaded before it
+        long version = 0;
+        long evictions = 0;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Holder<V>> eldest) {
+            if (size() > capacity) {
+                ++evictions;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private Stripe<K, V> stripe(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[hash & (STRIPES - 1)];
+    }
+
+    private Holder<V> holder(V value, long now) {
+        return new Holder<>(value, now + (value == null ? negativeLifeSpan : lifeSpan));
+    }
+
+    /**
+     *  Get cached value, or load it with the loader (outside the lock) and cache it
+     *
+     * @param key    - entity ID
+     * @param loader - value loader
+     * @return null on not found
+     */
+    public V get(K key, Loader<K, V> loader) {
+        Stripe<K, V> stripe = stripe(key);
+        long version;
+        synchronized (stripe) {
+            Holder<V> holder = stripe.get(key);
+            if (holder != null) {
+                if (holder.expires > System.currentTimeMillis()) {
+                    hits.incrementAndGet();
+                    return holder.value;
+                }
+                stripe.remove(key);
+                expirations.incrementAndGet();
+            }
+            version = stripe.version;
+        }
+        misses.incrementAndGet();
+        V value = loader.load(key);
+        synchronized (stripe) {
+            // not updated while loading
+            if (version == stripe.version) {
+                stripe.put(key, holder(value, System.currentTimeMillis()));
+            }
+        }
+        return value;
+    }
+
+    /**
+     *  Check whether the entity is cached and not expired, without counting hits
+     *
+     * @param key - entity ID
+     * @return true on cached
+     */
+    public boolean contains(K key) {
+        Stripe<K, V> stripe = stripe(key);
+        synchronized (stripe) {
+            Holder<V> holder = stripe.get(key);
+            return holder != null && holder.expires > System.currentTimeMillis();
+        }
+    }
+
+    /**
+     *  Get update version of the entity, call it before loading entities in batch
+     *
+     * @param key - entity ID
+     * @return version
+     */
+    public long getVersion(K key) {
+        Stripe<K, V> stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.version;
+        }
+    }
+
+    /**
+     *  Put value loaded in batch, ignored if it was updated after the version got
+     *
+     * @param key     - entity ID
+     * @param value   - null for not found
+     * @param version - update version before loading
+     * @return false on updated while loading
+     */
+    public boolean putLoaded(K key, V value, long version) {
+        Stripe<K, V> stripe = stripe(key);
+        synchronized (stripe) {
+            if (version != stripe.version) {
+                return false;
+            }
+            stripe.put(key, holder(value, System.currentTimeMillis()));
+            return true;
+        }
+    }
+
+    /**
+     *  Update value of the entity
+     *
+     * @param key   - entity ID
+     * @param value - null for not found
+     */
+    public void put(K key, V value) {
+        Stripe<K, V> stripe = stripe(key);
+        synchronized (stripe) {
+            ++stripe.version;
+            stripe.put(key, holder(value, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     *  Drop value of the entity for reloading
+     *
+     * @param key - entity ID
+     */
+    public void remove(K key) {
+        Stripe<K, V> stripe = stripe(key);
+        synchronized (stripe) {
+            ++stripe.version;
+            stripe.remove(key);
+        }
+    }
+
+    public void clear() {
+        for (Stripe<K, V> stripe : stripes) {
+            synchronized (stripe) {
+                ++stripe.version;
+                stripe.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    //
+    //  Statistics
+    //
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        long count = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.evictions;
+            }
+        }
+        return count;
+    }
+
+    public long getExpirationCount() {
+        return expirations.get();
+    }
+
+    /**
+     *  Get hit rate of lookups
+     *
+     * @return 0.0 ~ 1.0
+     */
+    public double getHitRate() {
+        long hit = hits.get();
+        long total = hit + misses.get();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    @Override
+    public String toString() {
+        return "<EntityCache name=\"" + name + "\" size=" + size() + " hits=" + hits.get()
+                + " misses=" + misses.get() + " evictions=" + getEvictionCount()
+                + " expirations=" + expirations.get() + " />";
+    }
+}
@@ -0,0 +1,61 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.util.Map;
+
+import chat.dim.protocol.ID;
+
+public interface GroupKeysTable {
+
+    /**
+     *  Get encrypted keys of the group message key from sender
+     *
+     * @param group  - group ID
+     * @param sender - sender ID
+     * @return {"digest": "...", member: base64, ...}
+     */
+    Map<String, Object> getGroupKeys(ID group, ID sender);
+
+    /**
+     *  Save encrypted keys of the group message key from sender,
+     *  merged with the old ones when the digests are the same
+     *
+     * @param group  - group ID
+     * @param sender - sender ID
+     * @param keys   - encrypted keys for members
+     * @return true on success
+     */
+    boolean saveGroupKeys(ID group, ID sender, Map<String, Object> keys);
+
+    /**
+     *  Remove encrypted keys of all senders in the group
+     *
+     * @param group - group ID
+     * @return false on not found
+     */
+    boolean removeGroupKeys(ID group);
+}
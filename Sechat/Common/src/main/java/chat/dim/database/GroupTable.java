@@ -30,6 +30,15 @@ import chat.dim.protocol.ID;
 
 public interface GroupTable extends GroupDBI {
 
+    /**
+     *  Check membership without copying the members list
+     *
+     * @param member - user ID
+     * @param group  - group ID
+     * @return true on found
+     */
+    boolean containsMember(ID member, ID group);
+
     boolean addMember(ID member, ID group);
 
     boolean removeMember(ID member, ID group);
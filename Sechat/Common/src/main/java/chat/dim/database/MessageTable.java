@@ -25,11 +25,32 @@
  */
 package chat.dim.database;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
 import chat.dim.protocol.ID;
 import chat.dim.protocol.InstantMessage;
 
 public interface MessageTable {
 
+    /**
+     *  Page of messages, loaded by (time, rowid) keyset
+     */
+    class MessagePage {
+        public final List<InstantMessage> messages;  // sorted by time, oldest first
+        public final long time;                      // time of the oldest message
+        public final long rowid;                     // row ID of the oldest message
+        public final boolean hasMore;                // whether older messages exist
+
+        public MessagePage(List<InstantMessage> messages, long time, long rowid, boolean hasMore) {
+            this.messages = messages;
+            this.time = time;
+            this.rowid = rowid;
+            this.hasMore = hasMore;
+        }
+    }
+
     //---- conversations
 
     /**
@@ -69,7 +90,7 @@ public interface MessageTable {
      *  Get message count in this conversation for an entity
      *
      * @param entity - conversation ID
-     * @return total count
+     * @return total count, archived messages included
      */
     int numberOfMessages(ID entity);
 
@@ -81,6 +102,13 @@ public interface MessageTable {
      */
     int numberOfUnreadMessages(ID entity);
 
+    /**
+     *  Get unread message counts of all conversations
+     *
+     * @return conversation IDs with unread counts, read only
+     */
+    Map<ID, Integer> unreadCounts();
+
     /**
      *  Clear unread flag in this conversation for an entity
      *
@@ -97,6 +125,15 @@ public interface MessageTable {
      */
     InstantMessage lastMessage(ID entity);
 
+    /**
+     *  Get last visible message of this conversation
+     *  (text, file, image, audio, video, page, money & transfer)
+     *
+     * @param entity - conversation ID
+     * @return instant message
+     */
+    InstantMessage lastVisibleMessage(ID entity);
+
     /**
      *  Get last received message from all conversations
      *
@@ -114,6 +151,29 @@ public interface MessageTable {
      */
     InstantMessage messageAtIndex(int index, ID entity);
 
+    /**
+     *  Get messages older than the position (time, rowid) of this conversation
+     *  (archived messages will be paged back after the others)
+     *
+     * @param time   - time of the oldest message loaded, 0 for the latest page
+     * @param rowid  - row ID of the oldest message loaded
+     * @param limit  - max messages in the page
+     * @param entity - conversation ID
+     * @return messages page
+     */
+    MessagePage messagesBefore(long time, long rowid, int limit, ID entity);
+
+    /**
+     *  Search messages with keywords in text & filenames
+     *
+     * @param keywords - words separated by spaces, all of them must be matched
+     * @param entity   - conversation ID, null for all conversations
+     * @param before   - 'rowid' of previous page, 0 for the first page
+     * @param limit    - max messages in the page
+     * @return messages page, latest first
+     */
+    MessagePage searchMessages(String keywords, ID entity, long before, int limit);
+
     /**
      *  Save the new message to local storage
      *
@@ -123,12 +183,21 @@ public interface MessageTable {
      */
     boolean insertMessage(InstantMessage iMsg, ID entity);
 
+    /**
+     *  Save new messages of one conversation in a single transaction (write behind)
+     *
+     * @param messages - instant messages
+     * @param entity - conversation ID
+     * @return future of the count of messages saved, completed after committed
+     */
+    Future<Integer> insertMessages(List<InstantMessage> messages, ID entity);
+
     /**
      *  Delete the message
      *
      * @param iMsg - instant message
      * @param entity - conversation ID
-     * @return true on row(s) affected
+     * @return true on deletion queued (write behind)
      */
     boolean removeMessage(InstantMessage iMsg, ID entity);
 
@@ -146,7 +215,7 @@ public interface MessageTable {
      *
      * @param iMsg - message with receipt content
      * @param entity - conversation ID
-     * @return true while target message found
+     * @return future of true while target message found, completed after committed
      */
-    boolean saveReceipt(InstantMessage iMsg, ID entity);
+    Future<Boolean> saveReceipt(InstantMessage iMsg, ID entity);
 }
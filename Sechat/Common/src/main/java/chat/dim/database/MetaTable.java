@@ -25,7 +25,17 @@
  */
 package chat.dim.database;
 
+import java.util.Collection;
+
 import chat.dim.dbi.MetaDBI;
+import chat.dim.protocol.ID;
 
 public interface MetaTable extends MetaDBI {
+
+    /**
+     *  Load meta of the entities into memory cache in batch
+     *
+     * @param entities - entity IDs
+     */
+    void prefetchMeta(Collection<ID> entities);
 }
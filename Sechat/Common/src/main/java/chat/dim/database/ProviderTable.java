@@ -28,9 +28,10 @@ package chat.dim.database;
 import java.util.List;
 
 import chat.dim.dbi.ProviderDBI;
+import chat.dim.dbi.StationDBI;
 import chat.dim.protocol.ID;
 
-public interface ProviderTable extends ProviderDBI {
+public interface ProviderTable extends ProviderDBI, StationDBI {
 
     class ProviderInfo {
         public ID identifier;
@@ -94,6 +95,11 @@ public interface ProviderTable extends ProviderDBI {
         public int port;
         public int chosen;
 
+        // round trip time of connecting (milliseconds), -1 means unknown or unreachable
+        public long rtt = -1;
+        // continuous failures of probing
+        public int failures = 0;
+
         public StationInfo(ID identifier, String name, String host, int port, int chosen) {
             this.identifier = identifier;
             this.name = name;
@@ -162,4 +168,14 @@ public interface ProviderTable extends ProviderDBI {
      * @return false on failed
      */
     boolean removeStations(ID sp);
+
+    /**
+     *  Record probing result of the station
+     *
+     * @param host - station IP
+     * @param port - station port
+     * @param rtt  - round trip time (milliseconds), -1 on failed
+     * @return false on station not found
+     */
+    boolean updateLatency(String host, int port, long rtt);
 }
@@ -0,0 +1,113 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import chat.dim.compat.CommonExtensionLoader;
+import chat.dim.compat.CommonPluginLoader;
+import chat.dim.compat.EntityIDFactory;
+import chat.dim.plugins.CryptoPluginLoader;
+import chat.dim.protocol.ID;
+
+/**
+ *  Measures allocated bytes of parsing IDs from the same strings again and again
+ *  (like cursor loops), and the heap retained by the factory after the IDs dropped
+ */
+public class IDInternBenchmark {
+
+    private static final String ADDRESS = "4WDfe3zZ4T7opFSi3iDAKiuTnUHjxmXekk";
+
+    private static final int COUNT = 1000;   // distinct ID strings
+    private static final int ROUNDS = 50;
+
+    // allocated bytes of current thread (HotSpot)
+    private static long allocated() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long used() {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void measure(String name, ID.Factory factory, String[] strings) {
+        long heap = used();
+        List<ID> array = new ArrayList<>(COUNT);
+        // first round, all missed
+        long start = allocated();
+        for (String item : strings) {
+            array.add(factory.parseIdentifier(new String(item)));
+        }
+        long first = allocated() - start;
+        // strings read from database are new objects each time
+        start = allocated();
+        for (int round = 0; round < ROUNDS; ++round) {
+            for (String item : strings) {
+                if (factory.parseIdentifier(new String(item)) == null) {
+                    throw new AssertionError("ID error: " + item);
+                }
+            }
+        }
+        long again = allocated() - start;
+        if (factory.parseIdentifier(strings[0]) != array.get(0)) {
+            throw new AssertionError("ID not shared: " + strings[0]);
+        }
+        array.clear();
+        long retained = used() - heap;
+        System.out.println(String.format("%s: first parse %d bytes/ID, parse again %d bytes/ID, retained %d bytes after dropped",
+                name, first / COUNT, again / ((long) ROUNDS * COUNT), retained));
+    }
+
+    /**
+     *  Test case
+     *
+     * @param args - command arguments
+     */
+    public static void main(String[] args) {
+
+        (new CommonExtensionLoader()).run();
+        (new CommonPluginLoader()).run();
+        (new CryptoPluginLoader()).run();
+
+        String[] strings = new String[COUNT];
+        for (int index = 0; index < COUNT; ++index) {
+            strings[index] = "user" + index + "@" + ADDRESS;
+        }
+        // warm up
+        measure("warm up", new EntityIDFactory(), strings);
+        measure("warm up", new InternedIDFactory(), strings);
+
+        measure("EntityIDFactory", new EntityIDFactory(), strings);
+        measure("InternedIDFactory", new InternedIDFactory(), strings);
+    }
+}
@@ -0,0 +1,134 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import chat.dim.compat.CommonExtensionLoader;
+import chat.dim.compat.CommonPluginLoader;
+import chat.dim.format.JSON;
+import chat.dim.format.UTF8;
+import chat.dim.plugins.CryptoPluginLoader;
+
+/**
+ *  Measures decoding time & stored bytes of message contents,
+ *  JSON text (format 0) vs ContentCoder binary (format 1)
+ */
+public class ContentCoderBenchmark {
+
+    private static final int WARMUP = 20000;
+    private static final int ROUNDS = 200000;
+
+    private static List<Map<String, Object>> samples() {
+        List<Map<String, Object>> array = new ArrayList<>();
+        Map<String, Object> text = new HashMap<>();
+        text.put("type", 1);
+        text.put("sn", 3927458213L);
+        text.put("time", 1603088214.257);
+        text.put("text", "Hello world! 你好，世界！");
+        array.add(text);
+        Map<String, Object> file = new HashMap<>();
+        file.put("type", 0x12);
+        file.put("sn", 1847302756L);
+        file.put("time", 1603088298.5);
+        file.put("filename", "a3f2c9e1b0d84f6e.jpg");
+        file.put("URL", "https://cdn.example.com/upload/a3f2c9e1b0d84f6e.jpg");
+        Map<String, Object> password = new HashMap<>();
+        password.put("algorithm", "AES");
+        password.put("data", "pIKbW7zGpPUb1WD0lEAiTk9nBbaGu5PAU3a4ggVl98A=");
+        file.put("password", password);
+        file.put("thumbnail", "/9j/4AAQSkZJRgABAQAAAQABAAD/2wBDAAgGBgcGBQgHBwcJCQgKDBQNDAsLDBkSEw8U");
+        array.add(file);
+        Map<String, Object> command = new HashMap<>();
+        command.put("type", 0x89);
+        command.put("sn", 2058364417L);
+        command.put("time", 1603088377.0);
+        command.put("command", "invite");
+        command.put("group", "Group-Naruto@7ThVZeDuQAdG3eSDF6NeFjMDPjKN5SbrnM");
+        List<String> members = new ArrayList<>();
+        members.add("moki@4WDfe3zZ4T7opFSi3iDAKiuTnUHjxmXekk");
+        members.add("hulk@4YeVEN3aUnvC1DNUufCq1bs9zoBSJTzVEj");
+        members.add("baloo@4LA5FNbpxP38UresZVpfWroC2GVomDDZ7q");
+        command.put("members", members);
+        array.add(command);
+        return array;
+    }
+
+    /**
+     *  Test case
+     *
+     * @param args - command arguments
+     */
+    public static void main(String[] args) {
+
+        (new CommonExtensionLoader()).run();
+        (new CommonPluginLoader()).run();
+        (new CryptoPluginLoader()).run();
+
+        List<Map<String, Object>> contents = samples();
+        int count = contents.size();
+        String[] texts = new String[count];
+        byte[][] binaries = new byte[count][];
+        int jsonBytes = 0;
+        int binaryBytes = 0;
+        for (int index = 0; index < count; ++index) {
+            texts[index] = JSON.encode(contents.get(index));
+            binaries[index] = ContentCoder.encode(contents.get(index));
+            jsonBytes += UTF8.encode(texts[index]).length;
+            binaryBytes += binaries[index].length;
+            // both formats must decode to the same fields
+            Object dict = JSON.decode(texts[index]);
+            if (!(dict instanceof Map) || !((Map) dict).keySet().equals(ContentCoder.decode(binaries[index]).keySet())) {
+                throw new AssertionError("content error: " + texts[index]);
+            }
+        }
+        System.out.println(String.format("bytes: JSON %d, binary %d (%.1f%%)",
+                jsonBytes, binaryBytes, binaryBytes * 100.0 / jsonBytes));
+
+        long json = 0;
+        long binary = 0;
+        Object res = null;
+        for (int round = 0; round < 2; ++round) {
+            // the first round for warming up
+            int times = round == 0 ? WARMUP : ROUNDS;
+            long start = System.nanoTime();
+            for (int i = 0; i < times; ++i) {
+                res = JSON.decode(texts[i % count]);
+            }
+            json = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < times; ++i) {
+                res = ContentCoder.decode(binaries[i % count]);
+            }
+            binary = System.nanoTime() - start;
+        }
+        System.out.println(String.format("decode: JSON %d ns/op, binary %d ns/op (last: %s)",
+                json / ROUNDS, binary / ROUNDS, res));
+    }
+}
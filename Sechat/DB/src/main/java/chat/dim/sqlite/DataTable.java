@@ -28,6 +28,17 @@ package chat.dim.sqlite;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public abstract class DataTable {
 
@@ -35,8 +46,185 @@ public abstract class DataTable {
         super();
     }
 
+    // compiled statements of the writer thread, keyed by SQL;
+    // only touched by that thread, readers rely on the connection's SQL cache
+    private final Map<String, SQLiteStatement> statements = new HashMap<>();
+    private SQLiteDatabase statementsOwner = null;
+
     protected abstract Database getDatabase();
 
+    /**
+     *  Queue database operations to the writer thread, they will be committed
+     *  together with other pending writes in one transaction.
+     *  <p>
+     *  Update memory caches before the task (or with afterCommit() within it),
+     *  so the callers can read their writes; queries won't wait for pending
+     *  writes, unless they were queued with a key.
+     *  </p>
+     *
+     * @param task - database operations
+     * @return future completed after committed
+     */
+    protected <V> Future<V> submit(Callable<V> task) {
+        return getDatabase().submit(task);
+    }
+
+    // last write queued for each key, dropped after committed
+    private final ConcurrentMap<Object, Future<?>> pendingWrites = new ConcurrentHashMap<>();
+
+    // purge committed ones when too many keys
+    private static final int MAX_PENDING_KEYS = 256;
+
+    /**
+     *  Queue database operations for the key (entity ID, conversation ID, ...),
+     *  queries of this key can wait for them with {@link #awaitWrites(Object)}
+     *
+     * @param key  - key of the rows written
+     * @param task - database operations
+     * @return future completed after committed
+     */
+    protected <V> Future<V> submit(Object key, Callable<V> task) {
+        Future<V> future = submit(task);
+        if (!future.isDone()) {
+            pendingWrites.put(key, future);
+            if (pendingWrites.size() > MAX_PENDING_KEYS) {
+                purgeWrites();
+            }
+        }
+        return future;
+    }
+
+    private void purgeWrites() {
+        Iterator<Map.Entry<Object, Future<?>>> iterator = pendingWrites.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue().isDone()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     *  Read your writes: wait until the writes queued for the key committed,
+     *  call it before querying rows of the key not from memory caches
+     *
+     * @param key - key of the rows to read
+     */
+    protected void awaitWrites(Object key) {
+        Future<?> future = pendingWrites.get(key);
+        if (future == null) {
+            return;
+        }
+        if (!future.isDone()) {
+            if (getDatabase().isWriting()) {
+                // the writer thread already sees its own writes
+                return;
+            }
+            try {
+                future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        pendingWrites.remove(key, future);
+    }
+
+    /**
+     *  Check whether writes of the key are still queued, so rows read for it
+     *  now may be out of date
+     *
+     * @param key - key of the rows
+     * @return true on not committed yet
+     */
+    protected boolean isWritePending(Object key) {
+        Future<?> future = pendingWrites.get(key);
+        return future != null && !future.isDone();
+    }
+
+    /**
+     *  Update memory after the transaction of current write task committed,
+     *  the write task may be rolled back and run again, so it must not
+     *  change memory states (caches, counters, ...) by itself
+     *
+     * @param action - memory updates
+     */
+    protected void afterCommit(Runnable action) {
+        getDatabase().afterCommit(action);
+    }
+
+    /**
+     *  Run database operations on the writer thread and wait for the result
+     *
+     * @param task         - database operations
+     * @param defaultValue - returned when failed
+     * @return result of the task
+     */
+    protected <V> V write(Callable<V> task, V defaultValue) {
+        Future<V> future = submit(task);
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Begins a transaction in IMMEDIATE mode.
+     * <p>
+     * In WAL mode this still lets other connections read while the transaction is in progress.
+     * </p>
+     * <p>
+     * Transactions can be nested. When the outer transaction is ended all of
+     * the work done in that transaction and all of the nested transactions will be committed or
+     * rolled back. The changes will be rolled back if any transaction is ended without being
+     * marked as clean (by calling setTransactionSuccessful). Otherwise they will be committed.
+     * </p>
+     * <p>Here is the standard idiom for transactions:
+     *
+     * <pre>
+     *   beginTransaction();
+     *   try {
+     *     ...
+     *     setTransactionSuccessful();
+     *   } finally {
+     *     endTransaction();
+     *   }
+     * </pre>
+     */
+    protected void beginTransaction() {
+        SQLiteDatabase db = getDatabase().getWritableDatabase();
+        if (db == null) {
+            throw new NullPointerException("failed to get writable database");
+        }
+        db.beginTransactionNonExclusive();
+    }
+
+    /**
+     * Marks the current transaction as successful. Do not do any more database work between
+     * calling this and calling endTransaction. Do as little non-database work as possible in that
+     * situation too. If any errors are encountered between this and endTransaction the transaction
+     * will still be committed.
+     */
+    protected void setTransactionSuccessful() {
+        SQLiteDatabase db = getDatabase().getWritableDatabase();
+        if (db == null) {
+            throw new NullPointerException("failed to get writable database");
+        }
+        db.setTransactionSuccessful();
+    }
+
+    /**
+     * End a transaction. See beginTransaction for notes about how to use this and when transactions
+     * are committed and rolled back.
+     */
+    protected void endTransaction() {
+        SQLiteDatabase db = getDatabase().getWritableDatabase();
+        if (db == null) {
+            throw new NullPointerException("failed to get writable database");
+        }
+        db.endTransaction();
+    }
+
     /**
      * Convenience method for inserting a row into the database.
      *
@@ -61,6 +249,34 @@ public abstract class DataTable {
         return db.insert(table, nullColumnHack, values);
     }
 
+    /**
+     * General method for inserting a row into the database.
+     *
+     * @param table the table to insert the row into
+     * @param nullColumnHack optional; may be <code>null</code>.
+     *            SQL doesn't allow inserting a completely empty row without
+     *            naming at least one column name.  If your provided <code>initialValues</code> is
+     *            empty, no column names are known and an empty row can't be inserted.
+     *            If not set to null, the <code>nullColumnHack</code> parameter
+     *            provides the name of nullable column name to explicitly insert a NULL into
+     *            in the case where your <code>initialValues</code> is empty.
+     * @param values this map contains the initial column values for the
+     *            row. The keys should be the column names and the values the
+     *            column values
+     * @param conflictAlgorithm for insert conflict resolver
+     * @return the row ID of the newly inserted row OR <code>-1</code> if either the
+     *            input parameter <code>conflictAlgorithm</code> = CONFLICT_IGNORE
+     *            or an error occurred.
+     */
+    protected long insertWithOnConflict(String table, String nullColumnHack, ContentValues values,
+                                        int conflictAlgorithm) {
+        SQLiteDatabase db = getDatabase().getWritableDatabase();
+        if (db == null) {
+            throw new NullPointerException("failed to get writable database");
+        }
+        return db.insertWithOnConflict(table, nullColumnHack, values, conflictAlgorithm);
+    }
+
     /**
      * Convenience method for deleting rows in the database.
      *
@@ -140,4 +356,184 @@ public abstract class DataTable {
         }
         return db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
     }
+
+    // max arguments bound to one statement, SQLite limits it to 999 by default
+    protected static final int MAX_BIND_ARGS = 500;
+
+    /**
+     * Build placeholders for an IN (...) clause, the arguments count should not
+     * exceed {@link #MAX_BIND_ARGS}.
+     *
+     * @param count number of the arguments
+     * @return "?,?,...,?"
+     */
+    protected static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int index = 0; index < count; ++index) {
+            if (index > 0) {
+                sb.append(',');
+            }
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get a pre-compiled statement for the SQL. On the writer thread it is cached and
+     * reused by later writes, so hot paths don't need to parse the same SQL again;
+     * other threads get a new statement, which must be released after executed.
+     * <p>
+     * Bind the arguments and execute it before returning, then call
+     * {@link #releaseStatement(SQLiteStatement)}.
+     * </p>
+     *
+     * @param sql The raw SQL statement, may contain ? for unknown values to be bound later.
+     * @return A pre-compiled {@link SQLiteStatement} object.
+     */
+    protected SQLiteStatement compileStatement(String sql) {
+        Database database = getDatabase();
+        if (!database.isWriterThread()) {
+            SQLiteDatabase db = database.getReadableDatabase();
+            if (db == null) {
+                throw new NullPointerException("failed to get readable database");
+            }
+            return db.compileStatement(sql);
+        }
+        SQLiteDatabase db = database.getWritableDatabase();
+        if (db == null) {
+            throw new NullPointerException("failed to get writable database");
+        }
+        if (statementsOwner != db) {
+            // database reopened, drop statements compiled for the old one
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
+            statementsOwner = db;
+        }
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Release a statement got from {@link #compileStatement(String)}: clear the bindings
+     * of a cached one, or close it if not cached.
+     *
+     * @param statement The statement executed.
+     */
+    protected void releaseStatement(SQLiteStatement statement) {
+        if (getDatabase().isWriterThread()) {
+            statement.clearBindings();
+        } else {
+            statement.close();
+        }
+    }
+
+    /**
+     *  Bind arguments to the statement
+     *
+     * @param statement - pre-compiled statement
+     * @param bindArgs  - values for the ?s in order; null, numbers, booleans, byte arrays
+     *                    and strings (or any object by its string value) are supported
+     */
+    protected static void bindArgs(SQLiteStatement statement, Object[] bindArgs) {
+        statement.clearBindings();
+        if (bindArgs == null) {
+            return;
+        }
+        Object value;
+        for (int index = 0; index < bindArgs.length; ++index) {
+            value = bindArgs[index];
+            if (value == null) {
+                statement.bindNull(index + 1);
+            } else if (value instanceof Double || value instanceof Float) {
+                statement.bindDouble(index + 1, ((Number) value).doubleValue());
+            } else if (value instanceof Number) {
+                statement.bindLong(index + 1, ((Number) value).longValue());
+            } else if (value instanceof Boolean) {
+                statement.bindLong(index + 1, (Boolean) value ? 1 : 0);
+            } else if (value instanceof byte[]) {
+                statement.bindBlob(index + 1, (byte[]) value);
+            } else {
+                statement.bindString(index + 1, value.toString());
+            }
+        }
+    }
+
+    /**
+     * Execute a pre-compiled INSERT statement.
+     *
+     * @param sql The INSERT statement with ?s for the values
+     * @param bindArgs values to bind in order
+     * @return the row ID of the last row inserted, if this insert is successful. -1 otherwise.
+     */
+    protected long executeInsert(String sql, Object... bindArgs) {
+        SQLiteStatement statement = compileStatement(sql);
+        bindArgs(statement, bindArgs);
+        try {
+            return statement.executeInsert();
+        } finally {
+            releaseStatement(statement);
+        }
+    }
+
+    /**
+     * Execute a pre-compiled UPDATE/DELETE statement.
+     *
+     * @param sql The UPDATE or DELETE statement with ?s for the values
+     * @param bindArgs values to bind in order
+     * @return the number of rows affected by this SQL statement execution.
+     */
+    protected int executeUpdateDelete(String sql, Object... bindArgs) {
+        SQLiteStatement statement = compileStatement(sql);
+        bindArgs(statement, bindArgs);
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            releaseStatement(statement);
+        }
+    }
+
+    /**
+     * Execute a pre-compiled query that returns a 1 by 1 table with a numeric value.
+     *
+     * @param sql The SELECT statement with ?s for the values
+     * @param defaultValue returned when the query returns no rows
+     * @param bindArgs values to bind in order
+     * @return The result of the query, or defaultValue if no rows found
+     */
+    protected long queryForLong(String sql, long defaultValue, Object... bindArgs) {
+        SQLiteStatement statement = compileStatement(sql);
+        bindArgs(statement, bindArgs);
+        try {
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return defaultValue;
+        } finally {
+            releaseStatement(statement);
+        }
+    }
+
+    /**
+     * Execute a pre-compiled query that returns a 1 by 1 table with a text value.
+     *
+     * @param sql The SELECT statement with ?s for the values
+     * @param bindArgs values to bind in order
+     * @return The result of the query, or null if no rows found
+     */
+    protected String queryForString(String sql, Object... bindArgs) {
+        SQLiteStatement statement = compileStatement(sql);
+        bindArgs(statement, bindArgs);
+        try {
+            return statement.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null;
+        } finally {
+            releaseStatement(statement);
+        }
+    }
 }
@@ -26,8 +26,12 @@
 package chat.dim.sqlite;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
 import chat.dim.filesys.LocalCache;
 import chat.dim.filesys.Paths;
 
@@ -39,6 +43,67 @@ public abstract class Database extends SQLiteOpenHelper {
         super(ctx, name, null, version);
     }
 
+    // all writes of this database go through one writer thread
+    private final WriteQueue writeQueue = new WriteQueue(this);
+
+    /**
+     *  Queue a write to run on the writer thread
+     *
+     * @param task - database operations, run within a transaction
+     * @return future completed after the transaction committed
+     */
+    public <V> Future<V> submit(Callable<V> task) {
+        return writeQueue.submit(task);
+    }
+
+    /**
+     *  Wait until all queued writes were committed, so they can be read
+     */
+    public void awaitWrites() {
+        writeQueue.await();
+    }
+
+    /**
+     *  Run the action after the transaction of current write committed;
+     *  a failed batch is rolled back and its writes run again one by one,
+     *  so writes must not change memory directly
+     *
+     * @param action - memory updates
+     */
+    public void afterCommit(Runnable action) {
+        writeQueue.afterCommit(action);
+    }
+
+    /**
+     *  Check whether the current thread is running writes (writer thread)
+     */
+    public boolean isWriting() {
+        return writeQueue.isWriting();
+    }
+
+    /**
+     *  Check whether the current thread is the writer thread of this database
+     */
+    public boolean isWriterThread() {
+        return writeQueue.isWriterThread();
+    }
+
+    // page cache for each connection, in KiB
+    public static int CACHE_SIZE = 2048;
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // page size only takes effect before the database file is created
+        db.execSQL("PRAGMA page_size=4096");
+        // readers won't block the writer (and vice versa) in WAL mode,
+        // and fsync only happens on checkpoints with synchronous=NORMAL
+        db.enableWriteAheadLogging();
+        db.execSQL("PRAGMA synchronous=NORMAL");
+        db.execSQL("PRAGMA cache_size=-" + CACHE_SIZE);
+        db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+    }
+
     protected static String getFilePath(String dbName) {
         LocalCache cache = LocalCache.getInstance();
         return Paths.append(cache.getCachesDirectory(), "sqlite", dbName);
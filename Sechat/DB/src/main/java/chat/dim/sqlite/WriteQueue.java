@@ -0,0 +1,310 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.sqlite;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Write-behind queue for one database
+ *
+ *      All writes run on a single writer thread, pending writes are taken
+ *      together and committed in one transaction; futures are completed
+ *      after the transaction committed, so a reader waiting for them will
+ *      see the data.
+ */
+final class WriteQueue implements Runnable {
+
+    // max writes committed in one transaction
+    static final int MAX_BATCH = 64;
+
+    private final SQLiteOpenHelper helper;
+
+    private final BlockingQueue<WriteTask<?>> queue = new LinkedBlockingQueue<>();
+    // queued and not committed yet
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    private volatile Thread thread = null;
+
+    // the queued task running on the writer thread, for its after-commit actions
+    private final ThreadLocal<WriteTask<?>> running = new ThreadLocal<>();
+
+    private long batches = 0;
+    private long writes = 0;
+
+    WriteQueue(SQLiteOpenHelper helper) {
+        super();
+        this.helper = helper;
+    }
+
+    // writes from the writer thread (or any thread holding a transaction)
+    // must run in place, or they would wait for themselves
+    private boolean inTransaction() {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        return db != null && db.inTransaction();
+    }
+
+    /**
+     *  Whether the current thread is running writes, it must not wait for them
+     */
+    boolean isWriting() {
+        return isWriterThread() || inTransaction();
+    }
+
+    /**
+     *  Whether the current thread is the writer thread itself
+     */
+    boolean isWriterThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    private synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this, "db-writer:" + helper.getDatabaseName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    <V> Future<V> submit(Callable<V> callable) {
+        WriteTask<V> task = new WriteTask<>(callable);
+        if (inTransaction()) {
+            task.run();
+            task.finish();
+            return task;
+        }
+        pending.incrementAndGet();
+        queue.add(task);
+        start();
+        return task;
+    }
+
+    /**
+     *  Run the action after the transaction of current write task committed,
+     *  it will be dropped if the transaction rolled back
+     *
+     * @param action - memory updates
+     */
+    void afterCommit(Runnable action) {
+        WriteTask<?> task = running.get();
+        if (task == null) {
+            // not in a queued write, nothing to wait for
+            action.run();
+        } else {
+            task.addAction(action);
+        }
+    }
+
+    /**
+     *  Wait until all writes queued before were committed
+     */
+    void await() {
+        if (pending.get() == 0 || inTransaction()) {
+            return;
+        }
+        Future<Object> barrier = submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return null;
+            }
+        });
+        try {
+            barrier.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<WriteTask<?>> batch = new ArrayList<>(MAX_BATCH);
+        List<WriteTask<?>> single = new ArrayList<>(1);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                continue;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            if (!commit(batch) && batch.size() > 1) {
+                // one failed write rolls back the whole batch,
+                // commit them one by one to keep the others
+                for (WriteTask<?> task : batch) {
+                    single.add(task);
+                    commit(single);
+                    single.clear();
+                }
+            }
+            for (WriteTask<?> task : batch) {
+                task.finish();
+            }
+            pending.addAndGet(-batch.size());
+            ++batches;
+            writes += batch.size();
+            batch.clear();
+        }
+    }
+
+    // run tasks in one transaction, return false if any of them failed
+    private boolean commit(List<WriteTask<?>> tasks) {
+        SQLiteDatabase db;
+        try {
+            db = helper.getWritableDatabase();
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+            for (WriteTask<?> task : tasks) {
+                task.fail(e);
+            }
+            return true;
+        }
+        boolean ok = true;
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                for (WriteTask<?> task : tasks) {
+                    running.set(task);
+                    try {
+                        task.run();
+                    } finally {
+                        running.remove();
+                    }
+                    if (task.isFailed()) {
+                        ok = false;
+                        break;
+                    }
+                }
+                if (ok) {
+                    db.setTransactionSuccessful();
+                }
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            // failed to commit
+            e.printStackTrace();
+            for (WriteTask<?> task : tasks) {
+                task.fail(e);
+            }
+            return true;
+        }
+        for (WriteTask<?> task : tasks) {
+            if (ok) {
+                task.runActions();
+            } else {
+                // rolled back, the tasks will run again
+                task.dropActions();
+            }
+        }
+        return ok;
+    }
+
+    @Override
+    public String toString() {
+        return "<WriteQueue pending=" + pending.get() + " batches=" + batches + " writes=" + writes + " />";
+    }
+
+    /**
+     *  Future completed only when the transaction it ran in is finished
+     */
+    private static final class WriteTask<V> extends FutureTask<V> {
+
+        private V result = null;
+        private Throwable error = null;
+
+        // memory updates, only applied after committed
+        private List<Runnable> actions = null;
+
+        WriteTask(Callable<V> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void set(V v) {
+            // hold the result until committed
+            result = v;
+            error = null;
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            error = t;
+        }
+
+        boolean isFailed() {
+            return error != null;
+        }
+
+        void fail(Throwable t) {
+            error = t;
+            actions = null;
+        }
+
+        void addAction(Runnable action) {
+            if (actions == null) {
+                actions = new ArrayList<>();
+            }
+            actions.add(action);
+        }
+
+        void dropActions() {
+            actions = null;
+        }
+
+        void runActions() {
+            if (actions == null) {
+                return;
+            }
+            for (Runnable action : actions) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            actions = null;
+        }
+
+        void finish() {
+            if (error == null) {
+                super.set(result);
+            } else {
+                super.setException(error);
+            }
+        }
+    }
+}
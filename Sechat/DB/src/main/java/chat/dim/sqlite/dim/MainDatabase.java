@@ -46,7 +46,7 @@ public final class MainDatabase extends Database {
     }
 
     private static final String DB_NAME = "dim.db";
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 2;
 
     static final String T_PROVIDER = "t_provider";
     static final String T_STATION = "t_station";
@@ -64,6 +64,7 @@ public final class MainDatabase extends Database {
 
         // stations
         db.execSQL("CREATE TABLE " + T_STATION + "(sid VARCHAR(64), spid VARCHAR(64), name VARCHAR(32), host VARCHAR(32), port INTEGER, chosen BIT)");
+        addLatencyColumns(db);
 
         // login info
         db.execSQL("CREATE TABLE " + T_LOGIN + "(uid VARCHAR(64), time INTEGER, station VARCHAR(64), command TEXT)");
@@ -72,5 +73,15 @@ public final class MainDatabase extends Database {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            addLatencyColumns(db);
+        }
+    }
+
+    // round trip time (milliseconds, -1 means unreachable), and continuous failures of probing
+    private void addLatencyColumns(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + T_STATION + " ADD COLUMN rtt INTEGER DEFAULT -1");
+        db.execSQL("ALTER TABLE " + T_STATION + " ADD COLUMN failures INTEGER DEFAULT 0");
+        db.execSQL("ALTER TABLE " + T_STATION + " ADD COLUMN probed INTEGER DEFAULT 0");
     }
 }
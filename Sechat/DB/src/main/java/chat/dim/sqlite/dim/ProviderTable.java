@@ -31,6 +31,7 @@ import android.database.sqlite.SQLiteCantOpenDatabaseException;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import chat.dim.protocol.ID;
 import chat.dim.sqlite.DataTable;
@@ -55,6 +56,11 @@ public final class ProviderTable extends DataTable implements chat.dim.database.
         return MainDatabase.getInstance();
     }
 
+    private static final String SQL_PROBE_SUCCEEDED = "UPDATE " + MainDatabase.T_STATION
+            + " SET rtt=?, failures=0, probed=? WHERE host=? AND port=?";
+    private static final String SQL_PROBE_FAILED = "UPDATE " + MainDatabase.T_STATION
+            + " SET rtt=-1, failures=failures+1, probed=? WHERE host=? AND port=?";
+
     //
     //  chat.dim.database.ProviderTable
     //
@@ -103,17 +109,24 @@ public final class ProviderTable extends DataTable implements chat.dim.database.
 
     @Override
     public List<chat.dim.dbi.ProviderInfo> allProviders() {
-        return null;
+        List<chat.dim.dbi.ProviderInfo> providers = new ArrayList<>();
+        for (ProviderInfo item : getProviders()) {
+            providers.add(new chat.dim.dbi.ProviderInfo(item.identifier, item.chosen));
+        }
+        return providers;
     }
 
     @Override
     public boolean addProvider(ID identifier, int chosen) {
-        return false;
+        return addProvider(identifier, null, null, chosen);
     }
 
     @Override
     public boolean updateProvider(ID identifier, int chosen) {
-        return false;
+        ContentValues values = new ContentValues();
+        values.put("chosen", chosen);
+        String[] whereArgs = {identifier.toString()};
+        return update(MainDatabase.T_PROVIDER, values, "spid=?", whereArgs) > 0;
     }
 
     @Override
@@ -125,7 +138,7 @@ public final class ProviderTable extends DataTable implements chat.dim.database.
     @Override
     public List<StationInfo> getStations(ID sp) {
         List<StationInfo> stations = new ArrayList<>();
-        String[] columns = {"sid", "name", "host", "port", "chosen"};
+        String[] columns = {"sid", "name", "host", "port", "chosen", "rtt", "failures"};
         String[] selectionArgs = {sp.toString()};
         try (Cursor cursor = query(MainDatabase.T_STATION, columns, "spid=?", selectionArgs, null, null, "chosen DESC")) {
             ID identifier;
@@ -133,13 +146,17 @@ public final class ProviderTable extends DataTable implements chat.dim.database.
             String host;
             int port;
             int chosen;
+            StationInfo info;
             while (cursor.moveToNext()) {
                 identifier = ID.parse(cursor.getString(0));
                 name = cursor.getString(1);
                 host = cursor.getString(2);
                 port = cursor.getInt(3);
                 chosen = cursor.getInt(4);
-                stations.add(new StationInfo(identifier, name, host, port, chosen));
+                info = new StationInfo(identifier, name, host, port, chosen);
+                info.rtt = cursor.getLong(5);
+                info.failures = cursor.getInt(6);
+                stations.add(info);
             }
         } catch (SQLiteCantOpenDatabaseException e) {
             e.printStackTrace();
@@ -194,4 +211,60 @@ public final class ProviderTable extends DataTable implements chat.dim.database.
         return delete(MainDatabase.T_STATION, "spid=?", whereArgs) > 0;
     }
 
+    @Override
+    public boolean updateLatency(final String host, final int port, final long rtt) {
+        final long now = System.currentTimeMillis() / 1000;
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if (rtt < 0) {
+                    return executeUpdateDelete(SQL_PROBE_FAILED, now, host, port) > 0;
+                } else {
+                    return executeUpdateDelete(SQL_PROBE_SUCCEEDED, rtt, now, host, port) > 0;
+                }
+            }
+        }, false);
+    }
+
+    //
+    //  chat.dim.dbi.StationDBI
+    //
+
+    @Override
+    public List<chat.dim.dbi.StationInfo> allStations(ID provider) {
+        List<chat.dim.dbi.StationInfo> stations = new ArrayList<>();
+        for (StationInfo item : getStations(provider)) {
+            stations.add(new chat.dim.dbi.StationInfo(item.identifier, item.chosen, item.host, item.port, provider));
+        }
+        return stations;
+    }
+
+    @Override
+    public boolean addStation(ID identifier, String host, int port, ID provider, int chosen) {
+        ContentValues values = new ContentValues();
+        values.put("spid", provider.toString());
+        values.put("sid", identifier == null ? null : identifier.toString());
+        values.put("host", host);
+        values.put("port", port);
+        values.put("chosen", chosen);
+        return insert(MainDatabase.T_STATION, null, values) >= 0;
+    }
+
+    @Override
+    public boolean updateStation(ID identifier, String host, int port, ID provider, int chosen) {
+        ContentValues values = new ContentValues();
+        if (identifier != null) {
+            values.put("sid", identifier.toString());
+        }
+        values.put("chosen", chosen);
+        String[] whereArgs = {provider.toString(), host, Integer.toString(port)};
+        return update(MainDatabase.T_STATION, values, "spid=? AND host=? AND port=?", whereArgs) > 0;
+    }
+
+    @Override
+    public boolean removeStation(String host, int port, ID provider) {
+        String[] whereArgs = {provider.toString(), host, Integer.toString(port)};
+        return delete(MainDatabase.T_STATION, "spid=? AND host=? AND port=?", whereArgs) > 0;
+    }
+
 }
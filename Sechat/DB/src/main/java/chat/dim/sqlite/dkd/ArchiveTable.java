@@ -0,0 +1,493 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.sqlite.dkd;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCantOpenDatabaseException;
+import android.text.TextUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import chat.dim.database.ContentCoder;
+import chat.dim.database.MessageTable.MessagePage;
+import chat.dim.filesys.ExternalStorage;
+import chat.dim.filesys.LocalCache;
+import chat.dim.filesys.Paths;
+import chat.dim.format.Base64;
+import chat.dim.log.Log;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.InstantMessage;
+import chat.dim.sqlite.DataTable;
+import chat.dim.sqlite.Database;
+
+/**
+ *  Message archive
+ *  ~~~~~~~~~~~~~~~
+ *
+ *  Old messages moved out of 't_message' are stored in append-only segment files
+ *  (gzipped ContentCoder data) under the caches directory; segments are never
+ *  modified after written, and are indexed by 't_archive' for paging back.
+ */
+final class ArchiveTable extends DataTable {
+
+    // max messages in one segment
+    static final int SEGMENT_SIZE = 500;
+
+    // decoded segments recently paged back
+    private static final int MAX_SEGMENTS = 4;
+
+    private final Map<String, List<Map<String, Object>>> segments = new LinkedHashMap<>(MAX_SEGMENTS, 0.75f, true);
+
+    private static final String SQL_INSERT_ARCHIVED = "INSERT OR REPLACE INTO " + MessageDatabase.T_ARCHIVED
+            + " (mid, cid, filename) VALUES (?, ?, ?)";
+    private static final String SQL_MAX_ARCHIVED = "SELECT IFNULL(MAX(mid), 0) FROM " + MessageDatabase.T_ARCHIVED;
+    private static final String SQL_COUNT_ARCHIVED = "SELECT IFNULL(SUM(count), 0) FROM " + MessageDatabase.T_ARCHIVE
+            + " WHERE cid=?";
+
+    ArchiveTable() {
+        super();
+    }
+
+    @Override
+    protected Database getDatabase() {
+        return MessageDatabase.getInstance();
+    }
+
+    private static String getDirectory(ID entity) {
+        LocalCache cache = LocalCache.getInstance();
+        return Paths.append(cache.getCachesDirectory(), "archive", entity.getAddress().toString());
+    }
+
+    /**
+     *  Save message rows into a new segment, call it on the writer thread
+     *  within the transaction of deleting them
+     *
+     * @param entity - conversation ID
+     * @param rows   - message rows with traces, sorted by (time, rowid)
+     * @return false on failed
+     */
+    boolean saveSegment(ID entity, List<MessageRow> rows) {
+        if (rows.size() == 0) {
+            return false;
+        }
+        List<Map<String, Object>> records = new ArrayList<>(rows.size());
+        InstantMessage msg;
+        Map<String, Object> info;
+        for (MessageRow row : rows) {
+            info = new HashMap<>();
+            info.put("rowid", row.rowid);
+            info.put("time", row.time);
+            info.put("read", row.read);
+            msg = row.getMessage();
+            if (msg == null) {
+                // content error, keep the raw columns, for the row will be deleted
+                Log.error("archiving message not decoded: " + entity + ", rowid=" + row.rowid);
+                info.put("raw", row.toRaw());
+            } else {
+                info.put("msg", msg.toMap());
+            }
+            records.add(info);
+        }
+        MessageRow first = rows.get(0);
+        MessageRow last = rows.get(rows.size() - 1);
+        // named by the rowids with a sequence number, a file left by rolled back
+        // transaction or rowids reused by messages deleted won't be overwritten
+        String dir = getDirectory(entity);
+        String filename;
+        String path;
+        int seq = 0;
+        do {
+            filename = first.rowid + "-" + last.rowid + "-" + seq + ".seg";
+            path = Paths.append(dir, filename);
+            ++seq;
+        } while (Paths.exists(path));
+        Map<String, Object> segment = new HashMap<>();
+        segment.put("cid", entity.toString());
+        segment.put("messages", records);
+        try {
+            byte[] data = gzip(ContentCoder.encode(segment));
+            if (ExternalStorage.saveBinary(data, path) != data.length) {
+                Log.error("failed to save archive: " + path);
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        // a segment file without index (transaction rolled back) will never be read
+        ContentValues values = new ContentValues();
+        values.put("cid", entity.toString());
+        values.put("filename", filename);
+        values.put("first_time", first.time);
+        values.put("first_mid", first.rowid);
+        values.put("last_time", last.time);
+        values.put("last_mid", last.rowid);
+        values.put("count", records.size());
+        if (insert(MessageDatabase.T_ARCHIVE, null, values) < 0) {
+            return false;
+        }
+        // archived messages are still in the full-text index, for searching
+        for (MessageRow row : rows) {
+            if (executeInsert(SQL_INSERT_ARCHIVED, row.rowid, entity.toString(), filename) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *  Remove all segments of the conversation, call it on the writer thread
+     *
+     * @param entity - conversation ID
+     */
+    void removeConversation(ID entity) {
+        String dir = getDirectory(entity);
+        String[] columns = {"filename"};
+        String[] selectionArgs = {entity.toString()};
+        final List<String> paths = new ArrayList<>();
+        try (Cursor cursor = query(MessageDatabase.T_ARCHIVE, columns, "cid=?", selectionArgs, null, null, null)) {
+            while (cursor.moveToNext()) {
+                paths.add(Paths.append(dir, cursor.getString(0)));
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+        }
+        delete(MessageDatabase.T_ARCHIVED, "cid=?", selectionArgs);
+        if (delete(MessageDatabase.T_ARCHIVE, "cid=?", selectionArgs) <= 0) {
+            return;
+        }
+        // segment files are still indexed until committed
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                for (String path : paths) {
+                    Paths.delete(path);
+                    synchronized (segments) {
+                        segments.remove(path);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     *  Get the max rowid of archived messages, new messages must be inserted after it,
+     *  for the archived rowids are still used in full-text index & 't_archived'
+     *
+     * @return 0 on nothing archived
+     */
+    long maxRowid() {
+        try {
+            return queryForLong(SQL_MAX_ARCHIVED, 0);
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     *  Get count of archived messages in the conversation
+     *
+     * @param entity - conversation ID
+     * @return 0 on nothing archived
+     */
+    int numberOfMessages(ID entity) {
+        try {
+            return (int) queryForLong(SQL_COUNT_ARCHIVED, 0, entity.toString());
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     *  Get archived message at offset
+     *
+     * @param offset - start from 0, the latest archived one first
+     * @param entity - conversation ID
+     * @return null on not found or content error
+     */
+    InstantMessage messageAt(int offset, ID entity) {
+        String[] columns = {"filename", "count"};
+        String[] selectionArgs = {entity.toString()};
+        try (Cursor cursor = query(MessageDatabase.T_ARCHIVE, columns, "cid=?", selectionArgs, null, null, "last_time DESC, last_mid DESC")) {
+            int skipped = 0;
+            int count;
+            List<Map<String, Object>> records;
+            while (cursor.moveToNext()) {
+                count = cursor.getInt(1);
+                if (offset >= skipped + count) {
+                    skipped += count;
+                    continue;
+                }
+                // records sorted by (time, rowid), count from the newest
+                records = loadSegment(Paths.append(getDirectory(entity), cursor.getString(0)));
+                int index = records.size() - 1 - (offset - skipped);
+                return index < 0 ? null : getMessage(records.get(index));
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     *  Find archived messages with rowids (docids in full-text index)
+     *
+     * @param rowids - rowids of messages moved out of 't_message'
+     * @return messages found
+     */
+    Map<Long, InstantMessage> findMessages(List<Long> rowids) {
+        Map<Long, InstantMessage> results = new HashMap<>();
+        // rowids in each segment file
+        Map<String, List<Long>> files = new HashMap<>();
+        String[] columns = {"mid", "cid", "filename"};
+        String selection = "mid IN (" + TextUtils.join(",", rowids) + ")";
+        try (Cursor cursor = query(MessageDatabase.T_ARCHIVED, columns, selection, null, null, null, null)) {
+            ID cid;
+            String path;
+            List<Long> array;
+            while (cursor.moveToNext()) {
+                cid = ID.parse(cursor.getString(1));
+                if (cid == null) {
+                    continue;
+                }
+                path = Paths.append(getDirectory(cid), cursor.getString(2));
+                array = files.get(path);
+                if (array == null) {
+                    array = new ArrayList<>();
+                    files.put(path, array);
+                }
+                array.add(cursor.getLong(0));
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+        }
+        long rowid;
+        InstantMessage msg;
+        for (Map.Entry<String, List<Long>> entry : files.entrySet()) {
+            for (Map<String, Object> info : loadSegment(entry.getKey())) {
+                rowid = getLong(info.get("rowid"));
+                if (!entry.getValue().contains(rowid)) {
+                    continue;
+                }
+                msg = getMessage(info);
+                if (msg != null) {
+                    results.put(rowid, msg);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     *  Append archived messages before the page
+     *
+     * @param page   - messages loaded from 't_message' without more
+     * @param limit  - max count of messages in the page
+     * @param entity - conversation ID
+     * @return page with older messages from archive
+     */
+    MessagePage fillPage(MessagePage page, int limit, ID entity) {
+        int count = page.messages == null ? 0 : page.messages.size();
+        MessagePage older = messagesBefore(page.time, page.rowid, limit - count, entity);
+        if (older.messages.size() == 0) {
+            return page;
+        }
+        List<InstantMessage> messages = new ArrayList<>(older.messages);
+        if (count > 0) {
+            messages.addAll(page.messages);
+        }
+        return new MessagePage(messages, older.time, older.rowid, older.hasMore);
+    }
+
+    /**
+     *  Load archived messages before (time, rowid)
+     *
+     * @param time   - time of the oldest message loaded (seconds), 0 for the latest
+     * @param rowid  - row ID of the oldest message loaded
+     * @param limit  - max count of messages
+     * @param entity - conversation ID
+     * @return messages sorted by time, oldest first
+     */
+    MessagePage messagesBefore(long time, long rowid, int limit, ID entity) {
+        List<InstantMessage> messages = new ArrayList<>();
+        boolean hasMore = false;
+        String selection;
+        if (time > 0) {
+            // segments with messages before (time, rowid)
+            selection = "cid=? AND (first_time<" + time + " OR (first_time=" + time + " AND first_mid<" + rowid + "))";
+        } else {
+            selection = "cid=?";
+        }
+        String[] columns = {"filename"};
+        String[] selectionArgs = {entity.toString()};
+        String dir = getDirectory(entity);
+        try (Cursor cursor = query(MessageDatabase.T_ARCHIVE, columns, selection, selectionArgs, null, null, "last_time DESC, last_mid DESC")) {
+            List<Map<String, Object>> records;
+            Map<String, Object> info;
+            long t;
+            long r;
+            while (!hasMore && cursor.moveToNext()) {
+                records = loadSegment(Paths.append(dir, cursor.getString(0)));
+                // records sorted by (time, rowid), walk from the newest
+                for (int index = records.size() - 1; index >= 0; --index) {
+                    info = records.get(index);
+                    t = getLong(info.get("time"));
+                    r = getLong(info.get("rowid"));
+                    if (time > 0 && (t > time || (t == time && r >= rowid))) {
+                        continue;
+                    }
+                    if (messages.size() >= limit) {
+                        hasMore = true;
+                        break;
+                    }
+                    InstantMessage msg = getMessage(info);
+                    if (msg != null) {
+                        messages.add(msg);
+                    }
+                    time = t;
+                    rowid = r;
+                }
+            }
+            if (!hasMore && cursor.moveToNext()) {
+                hasMore = true;
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+        }
+        // sort by time, oldest first
+        Collections.reverse(messages);
+        return new MessagePage(messages, time, rowid, hasMore);
+    }
+
+    private static long getLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static InstantMessage getMessage(Map<String, Object> info) {
+        Object msg = info.get("msg");
+        if (msg instanceof Map) {
+            // copy it, the decoded segment may be cached
+            return InstantMessage.parse(new HashMap<>((Map<String, Object>) msg));
+        }
+        Object raw = info.get("raw");
+        if (raw instanceof Map) {
+            // content error when archived, try again
+            return decodeRaw((Map<String, Object>) raw);
+        }
+        return null;
+    }
+
+    private static InstantMessage decodeRaw(Map<String, Object> raw) {
+        String sender = (String) raw.get("sender");
+        String receiver = (String) raw.get("receiver");
+        long time = getLong(raw.get("time"));
+        Object data = raw.get("data");
+        Object content = raw.get("content");
+        try {
+            if (data instanceof String) {
+                Map<String, Object> dict = ContentCoder.decode(Base64.decode((String) data));
+                return dict == null ? null : MessageDatabase.getInstanceMessage(sender, receiver, time, dict);
+            } else if (content instanceof String) {
+                return MessageDatabase.getInstanceMessage(sender, receiver, time, (String) content);
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> loadSegment(String path) {
+        List<Map<String, Object>> records;
+        synchronized (segments) {
+            records = segments.get(path);
+        }
+        if (records != null) {
+            return records;
+        }
+        records = new ArrayList<>();
+        try {
+            if (Paths.exists(path)) {
+                Map<String, Object> segment = ContentCoder.decode(gunzip(ExternalStorage.loadBinary(path)));
+                Object array = segment == null ? null : segment.get("messages");
+                if (array instanceof List) {
+                    for (Object item : (List<Object>) array) {
+                        if (item instanceof Map) {
+                            records.add((Map<String, Object>) item);
+                        }
+                    }
+                }
+            } else {
+                Log.error("archive segment lost: " + path);
+            }
+        } catch (IOException | IndexOutOfBoundsException e) {
+            e.printStackTrace();
+        }
+        synchronized (segments) {
+            segments.put(path, records);
+            if (segments.size() > MAX_SEGMENTS) {
+                // drop the least recently used one
+                String eldest = segments.keySet().iterator().next();
+                segments.remove(eldest);
+            }
+        }
+        return records;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] buffer = new byte[4096];
+            int len;
+            while ((len = gzip.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+        }
+        return out.toByteArray();
+    }
+}
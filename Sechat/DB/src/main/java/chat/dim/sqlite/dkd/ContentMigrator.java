@@ -0,0 +1,158 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.sqlite.dkd;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCantOpenDatabaseException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import chat.dim.database.ContentCoder;
+import chat.dim.format.JSON;
+import chat.dim.log.Log;
+import chat.dim.sqlite.DataTable;
+import chat.dim.sqlite.Database;
+
+/**
+ *  Content migrator
+ *  ~~~~~~~~~~~~~~~~
+ *
+ *  Converts JSON contents of existing messages to binary format in background,
+ *  batch by batch in rowid order, each batch is a task of the write queue.
+ */
+final class ContentMigrator extends DataTable implements Runnable {
+
+    // rows for each batch
+    private static final int BATCH_SIZE = 200;
+    // pause between batches, so the writer won't be occupied for too long
+    private static final long BATCH_INTERVAL = 100;  // milliseconds
+
+    // accessed by write tasks only
+    private long lastRowid = 0;
+    private int total = 0;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    ContentMigrator() {
+        super();
+    }
+
+    @Override
+    protected Database getDatabase() {
+        return MessageDatabase.getInstance();
+    }
+
+    /**
+     *  Start converting in background, batch by batch
+     */
+    void start() {
+        scheduler.scheduleWithFixedDelay(this, BATCH_INTERVAL, BATCH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        // wait for the batch, so the next one won't be queued before it's done
+        int count = write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return migrate();
+            }
+        }, -1);
+        if (count == 0) {
+            Log.info("message contents migrated: " + total);
+            scheduler.shutdown();
+        } else if (count < 0) {
+            // rolled back, try this batch again later
+            Log.error("failed to migrate message contents after rowid: " + lastRowid);
+        }
+    }
+
+    // convert one batch on the writer thread, return count of rows converted
+    @SuppressWarnings("unchecked")
+    private int migrate() {
+        // load JSON contents
+        Map<Long, String> contents = new HashMap<>();
+        List<Long> rowids = new ArrayList<>();
+        String[] columns = {"rowid", "content"};
+        String selection = "rowid>" + lastRowid + " AND (format IS NULL OR format=" + ContentCoder.FORMAT_JSON + ")";
+        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, columns, selection, null, null, null, "rowid LIMIT " + BATCH_SIZE)) {
+            while (cursor.moveToNext()) {
+                rowids.add(cursor.getLong(0));
+                contents.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        if (rowids.size() == 0) {
+            return 0;
+        }
+        // save binary contents
+        ContentValues values = new ContentValues();
+        values.put("format", ContentCoder.FORMAT_BINARY);
+        values.putNull("content");
+        // mark the rows failed, so they won't be loaded again
+        ContentValues failed = new ContentValues();
+        failed.put("format", ContentCoder.FORMAT_ERROR);
+        Object dict;
+        byte[] data;
+        for (Long rowid : rowids) {
+            try {
+                dict = JSON.decode(contents.get(rowid));
+                data = dict instanceof Map ? ContentCoder.encode((Map<String, Object>) dict) : null;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                data = null;
+            }
+            if (data == null) {
+                Log.error("message content error: " + rowid);
+                update(MessageDatabase.T_MESSAGE, failed, "rowid=" + rowid, null);
+                continue;
+            }
+            values.put("data", data);
+            update(MessageDatabase.T_MESSAGE, values, "rowid=" + rowid, null);
+        }
+        // moved on only when this batch is committed
+        final long last = rowids.get(rowids.size() - 1);
+        final int count = rowids.size();
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                lastRowid = last;
+                total += count;
+            }
+        });
+        return count;
+    }
+}
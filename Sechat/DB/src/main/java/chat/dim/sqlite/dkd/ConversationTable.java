@@ -0,0 +1,339 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.sqlite.dkd;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCantOpenDatabaseException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import chat.dim.protocol.ContentType;
+import chat.dim.protocol.EntityType;
+import chat.dim.protocol.ID;
+import chat.dim.sqlite.DataTable;
+import chat.dim.sqlite.Database;
+import chat.dim.type.Converter;
+
+/**
+ *  Conversation summaries
+ *  ~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  One row for each conversation, must be updated within the same transaction
+ *  while messages inserted/removed in 't_message'.
+ */
+final class ConversationTable extends DataTable {
+
+    ConversationTable() {
+        super();
+    }
+
+    @Override
+    protected Database getDatabase() {
+        return MessageDatabase.getInstance();
+    }
+
+    // message types shown in conversation list
+    private static final String[] VISIBLE = {
+            ContentType.TEXT,
+            ContentType.FILE,
+            ContentType.IMAGE,
+            ContentType.AUDIO,
+            ContentType.VIDEO,
+            ContentType.PAGE,
+            ContentType.MONEY,
+            ContentType.TRANSFER,
+    };
+
+    // "(1, 16, ...)"
+    static final String VISIBLE_TYPES = buildTypes();
+
+    private static String buildTypes() {
+        StringBuilder sb = new StringBuilder("(");
+        for (String type : VISIBLE) {
+            if (sb.length() > 1) {
+                sb.append(",");
+            }
+            sb.append(Converter.getInteger(type, 0));
+        }
+        return sb.append(")").toString();
+    }
+
+    static boolean isVisible(String type) {
+        for (String item : VISIBLE) {
+            if (item.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *  Get conversation IDs, sorted by last message time
+     *
+     * @return conversation IDs, latest first
+     */
+    List<ID> allConversations() {
+        List<ID> array = new ArrayList<>();
+        String[] columns = {"cid"};
+        String[] selectionArgs = {"" + EntityType.STATION.value};
+        try (Cursor cursor = query(MessageDatabase.T_CONVERSATION, columns, "type IS NULL OR type!=?", selectionArgs, null, null, "last_time DESC")) {
+            ID identifier;
+            while (cursor.moveToNext()) {
+                identifier = ID.parse(cursor.getString(0));
+                if (identifier == null) {
+                    continue;
+                } else if (identifier.getType() == EntityType.STATION.value) {
+                    // TODO: set flag to ignore message from station
+                    continue;
+                }
+                array.add(identifier);
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+        }
+        return array;
+    }
+
+    // unread counts of all conversations, copy-on-write;
+    // loaded with one query, then updated with the summaries
+    private volatile Map<ID, Integer> unreadCounts = null;
+    // increased for each update, to drop counts loaded before it
+    private int unreadVersion = 0;
+
+    /**
+     *  Get unread counts of all conversations
+     *
+     * @return conversation IDs with unread counts (> 0), read only
+     */
+    Map<ID, Integer> unreadCounts() {
+        Map<ID, Integer> counts = unreadCounts;
+        if (counts != null) {
+            return counts;
+        }
+        int version;
+        synchronized (this) {
+            version = unreadVersion;
+        }
+        counts = new HashMap<>();
+        String[] columns = {"cid", "unread_count"};
+        try (Cursor cursor = query(MessageDatabase.T_CONVERSATION, columns, "unread_count>0", null, null, null, null)) {
+            ID identifier;
+            while (cursor.moveToNext()) {
+                identifier = ID.parse(cursor.getString(0));
+                if (identifier != null) {
+                    counts.put(identifier, cursor.getInt(1));
+                }
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+        }
+        counts = Collections.unmodifiableMap(counts);
+        synchronized (this) {
+            if (version == unreadVersion) {
+                unreadCounts = counts;
+            }
+        }
+        return counts;
+    }
+
+    int numberOfUnreadMessages(ID entity) {
+        Integer count = unreadCounts().get(entity);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     *  Update unread count in memory
+     *
+     * @param entity - conversation ID
+     * @param count  - unread count
+     */
+    synchronized void setUnreadCount(ID entity, int count) {
+        ++unreadVersion;
+        Map<ID, Integer> counts = unreadCounts;
+        if (counts == null) {
+            // not loaded yet
+            return;
+        }
+        Integer old = counts.get(entity);
+        if (old == null ? count <= 0 : old == count) {
+            return;
+        }
+        Map<ID, Integer> copy = new HashMap<>(counts);
+        if (count > 0) {
+            copy.put(entity, count);
+        } else {
+            copy.remove(entity);
+        }
+        unreadCounts = Collections.unmodifiableMap(copy);
+    }
+
+    // update unread count in memory after committed, call it on the writer thread
+    private void updateUnreadCount(final ID entity, final int count) {
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                setUnreadCount(entity, count);
+            }
+        });
+    }
+
+    /**
+     *  Get last visible message
+     *
+     * @param entity - conversation ID
+     * @return rowid in 't_message', 0 on not found
+     */
+    long lastVisibleMessage(ID entity) {
+        String[] columns = {"last_mid"};
+        String[] selectionArgs = {entity.toString()};
+        try (Cursor cursor = query(MessageDatabase.T_CONVERSATION, columns, "cid=?", selectionArgs, null, null, null)) {
+            if (cursor.moveToNext()) {
+                return cursor.getLong(0);
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    // get time of the message with rowid
+    private long getMessageTime(long rowid) {
+        String[] columns = {"time"};
+        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, columns, "rowid=" + rowid, null, null, null, null)) {
+            if (cursor.moveToNext()) {
+                return cursor.getLong(0);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     *  Update summary for new message, call it within the transaction of inserting message
+     *
+     * @param entity - conversation ID
+     * @param rowid  - message rowid
+     * @param time   - message time (seconds)
+     * @param type   - content type
+     * @param read   - whether read
+     * @return false on failed
+     */
+    boolean didInsertMessage(ID entity, long rowid, long time, String type, boolean read) {
+        boolean visible = isVisible(type);
+        String[] columns = {"last_time", "last_mid", "unread_count"};
+        String[] selectionArgs = {entity.toString()};
+        long lastTime = -1;
+        long lastMid = 0;
+        int unread = 0;
+        try (Cursor cursor = query(MessageDatabase.T_CONVERSATION, columns, "cid=?", selectionArgs, null, null, null)) {
+            if (cursor.moveToNext()) {
+                lastTime = cursor.getLong(0);
+                lastMid = cursor.getLong(1);
+                unread = cursor.getInt(2);
+            }
+        }
+        ContentValues values = new ContentValues();
+        if (lastTime < 0) {
+            // new conversation
+            values.put("cid", entity.toString());
+            values.put("type", entity.getType());
+            values.put("last_time", time);
+            values.put("last_mid", visible ? rowid : 0);
+            values.put("unread_count", read ? 0 : 1);
+            updateUnreadCount(entity, read ? 0 : 1);
+            return insert(MessageDatabase.T_CONVERSATION, null, values) >= 0;
+        }
+        if (time > lastTime) {
+            values.put("last_time", time);
+        }
+        if (visible && (lastMid == 0 || time >= lastTime || time >= getMessageTime(lastMid))) {
+            values.put("last_mid", rowid);
+        }
+        if (!read) {
+            values.put("unread_count", unread + 1);
+            updateUnreadCount(entity, unread + 1);
+        }
+        if (values.size() == 0) {
+            return true;
+        }
+        return update(MessageDatabase.T_CONVERSATION, values, "cid=?", selectionArgs) > 0;
+    }
+
+    /**
+     *  Rebuild summary from messages, call it within the transaction of removing messages
+     *
+     * @param entity - conversation ID
+     * @return false on failed
+     */
+    boolean refresh(ID entity) {
+        String[] selectionArgs = {entity.toString()};
+        long lastTime = 0;
+        int unread = 0;
+        long lastMid = 0;
+        String[] columns1 = {"MAX(time)", "COUNT(*)", "SUM(CASE WHEN read!=1 THEN 1 ELSE 0 END)"};
+        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, columns1, "cid=?", selectionArgs, null, null, null)) {
+            if (cursor.moveToNext()) {
+                if (cursor.getInt(1) == 0) {
+                    // no message left
+                    return remove(entity);
+                }
+                lastTime = cursor.getLong(0);
+                unread = cursor.getInt(2);
+            }
+        }
+        String[] columns2 = {"rowid"};
+        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, columns2, "cid=? AND type IN " + VISIBLE_TYPES,
+                selectionArgs, null, null, "time DESC, rowid DESC LIMIT 1")) {
+            if (cursor.moveToNext()) {
+                lastMid = cursor.getLong(0);
+            }
+        }
+        ContentValues values = new ContentValues();
+        values.put("last_time", lastTime);
+        values.put("last_mid", lastMid);
+        values.put("unread_count", unread);
+        updateUnreadCount(entity, unread);
+        return update(MessageDatabase.T_CONVERSATION, values, "cid=?", selectionArgs) > 0;
+    }
+
+    boolean clearUnread(ID entity) {
+        updateUnreadCount(entity, 0);
+        ContentValues values = new ContentValues();
+        values.put("unread_count", 0);
+        String[] whereArgs = {entity.toString()};
+        return update(MessageDatabase.T_CONVERSATION, values, "cid=? AND unread_count>0", whereArgs) > 0;
+    }
+
+    boolean remove(ID entity) {
+        updateUnreadCount(entity, 0);
+        String[] whereArgs = {entity.toString()};
+        return delete(MessageDatabase.T_CONVERSATION, "cid=?", whereArgs) > 0;
+    }
+}
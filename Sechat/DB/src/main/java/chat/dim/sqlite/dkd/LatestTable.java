@@ -0,0 +1,247 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.sqlite.dkd;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCantOpenDatabaseException;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import chat.dim.sqlite.DataTable;
+import chat.dim.sqlite.Database;
+
+/**
+ *  Latest messages
+ *  ~~~~~~~~~~~~~~~
+ *
+ *  Keeps two pointers, persisted in 't_latest':
+ *      1. the latest message;
+ *      2. the latest message from a sender other than the first one's.
+ *  So the last message received by any user (sender != user) is one of them.
+ *
+ *  All writes run on the writer thread, and the pointers in memory
+ *  are only replaced after committed; they are rebuilt with index 'msg_recent_index'
+ *  after the messages they point to were removed.
+ */
+final class LatestTable extends DataTable {
+
+    LatestTable() {
+        super();
+    }
+
+    @Override
+    protected Database getDatabase() {
+        return MessageDatabase.getInstance();
+    }
+
+    private static final class Pointer {
+
+        final long rowid;
+        final long time;
+        final String sender;
+
+        Pointer(long rowid, long time, String sender) {
+            this.rowid = rowid;
+            this.time = time;
+            this.sender = sender;
+        }
+
+        boolean isNewerThan(long otherTime, long otherRowid) {
+            return time > otherTime || (time == otherTime && rowid > otherRowid);
+        }
+    }
+
+    // pointers committed, replaced after each transaction changed them
+    private final AtomicReference<Pointer[]> pointers = new AtomicReference<>();
+
+    /**
+     *  Get the last message not sent by this user
+     *
+     * @param user - user ID string
+     * @return rowid in 't_message', 0 on not found
+     */
+    long lastReceived(String user) {
+        Pointer[] array = pointers.get();
+        if (array == null) {
+            // read committed pointers, no need to wait for the writer;
+            // if any transaction published newer ones meanwhile, use them
+            array = read();
+            if (array[0] == null) {
+                // not built yet, the next write will save them
+                array = build();
+            }
+            if (!pointers.compareAndSet(null, array)) {
+                array = pointers.get();
+            }
+        }
+        if (array[0] == null) {
+            return 0;
+        } else if (!user.equals(array[0].sender)) {
+            return array[0].rowid;
+        } else if (array[1] == null) {
+            return 0;
+        }
+        return array[1].rowid;
+    }
+
+    // set pointers in memory after committed
+    private void publish(final Pointer[] array) {
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                pointers.set(array);
+            }
+        });
+    }
+
+    // read pointers from 't_latest', both null if not built yet
+    private Pointer[] read() {
+        Pointer[] array = new Pointer[2];
+        String[] columns = {"slot", "mid", "time", "sender"};
+        try (Cursor cursor = query(MessageDatabase.T_LATEST, columns, null, null, null, null, null)) {
+            Pointer pointer;
+            while (cursor.moveToNext()) {
+                pointer = new Pointer(cursor.getLong(1), cursor.getLong(2), cursor.getString(3));
+                if (cursor.getInt(0) == 1) {
+                    array[0] = pointer;
+                } else {
+                    array[1] = pointer;
+                }
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+        }
+        return array;
+    }
+
+    // pointers within current transaction, call it on the writer thread
+    private Pointer[] load() {
+        Pointer[] array = read();
+        if (array[0] == null) {
+            array = rebuild();
+        }
+        return array;
+    }
+
+    private Pointer[] rebuild() {
+        Pointer[] array = build();
+        save(array);
+        return array;
+    }
+
+    private Pointer[] build() {
+        Pointer first = latestMessage(null);
+        Pointer second = first == null ? null : latestMessage(first.sender);
+        return new Pointer[]{first, second};
+    }
+
+    // latest message with index (time)
+    private Pointer latestMessage(String exceptSender) {
+        String[] columns = {"rowid", "time", "sender"};
+        String selection = null;
+        String[] selectionArgs = null;
+        if (exceptSender != null) {
+            selection = "sender!=?";
+            selectionArgs = new String[]{exceptSender};
+        }
+        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, columns, selection, selectionArgs, null, null, "time DESC, rowid DESC LIMIT 1")) {
+            if (cursor.moveToNext()) {
+                return new Pointer(cursor.getLong(0), cursor.getLong(1), cursor.getString(2));
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private void save(Pointer[] array) {
+        delete(MessageDatabase.T_LATEST, null, null);
+        save(1, array[0]);
+        save(2, array[1]);
+    }
+
+    private void save(int slot, Pointer pointer) {
+        if (pointer == null) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put("slot", slot);
+        values.put("mid", pointer.rowid);
+        values.put("time", pointer.time);
+        values.put("sender", pointer.sender);
+        insert(MessageDatabase.T_LATEST, null, values);
+    }
+
+    /**
+     *  Move pointers for new message, call it within the transaction of inserting message
+     *
+     * @param rowid  - message rowid
+     * @param time   - message time (seconds)
+     * @param sender - sender ID string
+     */
+    void didInsertMessage(long rowid, long time, String sender) {
+        Pointer[] array = load();
+        Pointer first = array[0];
+        Pointer second = array[1];
+        if (first == null) {
+            first = new Pointer(rowid, time, sender);
+        } else if (!first.isNewerThan(time, rowid)) {
+            if (!first.sender.equals(sender)) {
+                second = first;
+            }
+            first = new Pointer(rowid, time, sender);
+        } else if (!first.sender.equals(sender) && (second == null || !second.isNewerThan(time, rowid))) {
+            second = new Pointer(rowid, time, sender);
+        } else {
+            return;
+        }
+        array = new Pointer[]{first, second};
+        save(array);
+        publish(array);
+    }
+
+    /**
+     *  Rebuild pointers if the message removed was pointed,
+     *  call it within the transaction of removing message
+     *
+     * @param rowid - message rowid
+     */
+    void didRemoveMessage(long rowid) {
+        Pointer[] array = load();
+        if ((array[0] != null && array[0].rowid == rowid) || (array[1] != null && array[1].rowid == rowid)) {
+            publish(rebuild());
+        }
+    }
+
+    /**
+     *  Rebuild pointers after messages removed in bulk,
+     *  call it within the transaction of removing messages
+     */
+    void reset() {
+        publish(rebuild());
+    }
+}
@@ -0,0 +1,543 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.sqlite.dkd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import chat.dim.log.Log;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.InstantMessage;
+
+/**
+ *  Messages cache for conversations
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Keeps message windows, traces, sn/signature indexes and last visible messages of recent conversations,
+ *  the least recently used conversations will be evicted when total bytes exceed the budget.
+ *
+ *  Each conversation keeps an immutable snapshot, which is replaced atomically (copy-on-write),
+ *  so readers never block and never see a half-updated state; the snapshot version increases
+ *  on every invalidation, and a loader publishes its result only when the version it started
+ *  with is still current, so a stale result loaded before a write will never be cached.
+ */
+final class MessageCache {
+
+    // memory budget for all conversations
+    static final int MAX_BYTES = 2 * 1024 * 1024;
+
+    // estimated memory for each decoded message besides its strings
+    private static final int MESSAGE_OVERHEAD = 256;
+    // estimated memory for each index record
+    private static final int INDEX_OVERHEAD = 64;
+
+    private final int capacity;
+
+    private final ConcurrentMap<ID, Entry> entries = new ConcurrentHashMap<>();
+
+    // logical clock for least recently used
+    private final AtomicLong clock = new AtomicLong(0);
+    // snapshot versions, never reused even if a conversation is removed and cached again
+    private final AtomicLong versions = new AtomicLong(0);
+    // only one thread trims at a time, the others just skip
+    private final AtomicBoolean trimming = new AtomicBoolean(false);
+
+    private final AtomicInteger hits = new AtomicInteger(0);
+    private final AtomicInteger misses = new AtomicInteger(0);
+
+    MessageCache(int capacity) {
+        super();
+        this.capacity = capacity;
+    }
+
+    /**
+     *  Immutable state of a conversation
+     */
+    private static final class Snapshot {
+
+        final long version;
+
+        final MessageWindow window;
+
+        // traces by message rowid, unmodifiable
+        final Map<Long, List<String>> traces;
+        final int tracesSize;
+
+        final InstantMessage lastVisibleMessage;
+        final int lastVisibleSize;
+
+        Snapshot(long version, MessageWindow window,
+                 Map<Long, List<String>> traces, int tracesSize,
+                 InstantMessage lastVisibleMessage, int lastVisibleSize) {
+            super();
+            this.version = version;
+            this.window = window;
+            this.traces = traces;
+            this.tracesSize = tracesSize;
+            this.lastVisibleMessage = lastVisibleMessage;
+            this.lastVisibleSize = lastVisibleSize;
+        }
+
+        Snapshot withWindow(MessageWindow newWindow) {
+            return new Snapshot(version, newWindow, traces, tracesSize, lastVisibleMessage, lastVisibleSize);
+        }
+
+        Snapshot withTraces(long newVersion, Map<Long, List<String>> newTraces, int newSize) {
+            return new Snapshot(newVersion, window, newTraces, newSize, lastVisibleMessage, lastVisibleSize);
+        }
+
+        Snapshot withLastVisible(InstantMessage iMsg, int size) {
+            return new Snapshot(version, window, traces, tracesSize, iMsg, size);
+        }
+    }
+
+    private static class Entry {
+
+        final AtomicReference<Snapshot> snapshot;
+
+        // message rowid by sn & signature
+        final Map<Long, Long> snIndex = new ConcurrentHashMap<>();
+        final Map<String, Long> signatureIndex = new ConcurrentHashMap<>();
+
+        volatile long accessed = 0;
+
+        Entry(long version) {
+            super();
+            snapshot = new AtomicReference<>(new Snapshot(version, null, null, 0, null, 0));
+        }
+
+        int size() {
+            Snapshot current = snapshot.get();
+            int size = current.tracesSize + current.lastVisibleSize;
+            size += (snIndex.size() + signatureIndex.size()) * INDEX_OVERHEAD;
+            if (current.window != null) {
+                size += current.window.getSize();
+            }
+            return size;
+        }
+    }
+
+    private Entry getEntry(ID entity, boolean create) {
+        Entry entry = entries.get(entity);
+        if (entry == null && create) {
+            Entry fresh = new Entry(versions.incrementAndGet());
+            entry = entries.putIfAbsent(entity, fresh);
+            if (entry == null) {
+                entry = fresh;
+            }
+        }
+        if (entry != null) {
+            entry.accessed = clock.incrementAndGet();
+        }
+        return entry;
+    }
+
+    private void record(boolean hit) {
+        if (hit) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+    }
+
+    /**
+     *  Estimate memory size of a decoded message
+     *
+     * @param strings - sender, receiver, content, ...
+     * @return bytes
+     */
+    static int sizeOf(String... strings) {
+        int size = MESSAGE_OVERHEAD;
+        for (String item : strings) {
+            if (item != null) {
+                size += item.length() * 2;
+            }
+        }
+        return size;
+    }
+
+    /**
+     *  Get snapshot version of the conversation, call it before loading from database,
+     *  and pass it back when putting the loaded result into the cache
+     *
+     * @param entity - conversation ID
+     * @return version
+     */
+    long getVersion(ID entity) {
+        return getEntry(entity, true).snapshot.get().version;
+    }
+
+    // drop the loaded state which may be changed by a write
+    private void invalidate(Entry entry, boolean messages, boolean traces) {
+        long version = versions.incrementAndGet();
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = entry.snapshot.get();
+            next = new Snapshot(version,
+                    messages ? null : current.window,
+                    traces ? null : current.traces, traces ? 0 : current.tracesSize,
+                    messages ? null : current.lastVisibleMessage, messages ? 0 : current.lastVisibleSize);
+        } while (!entry.snapshot.compareAndSet(current, next));
+    }
+
+    //
+    //  Message windows
+    //
+
+    /**
+     *  Get message window of the conversation, create an empty one when not cached
+     *
+     * @param entity - conversation ID
+     * @return message window
+     */
+    MessageWindow getWindow(ID entity) {
+        Entry entry = getEntry(entity, true);
+        Snapshot current = entry.snapshot.get();
+        record(current.window != null);
+        MessageWindow window = current.window;
+        while (window == null) {
+            MessageWindow fresh = new MessageWindow(entity);
+            if (entry.snapshot.compareAndSet(current, current.withWindow(fresh))) {
+                window = fresh;
+            } else {
+                current = entry.snapshot.get();
+                window = current.window;
+            }
+        }
+        return window;
+    }
+
+    /**
+     *  Get message window of the conversation without creating
+     *
+     * @param entity - conversation ID
+     * @return null on not cached
+     */
+    MessageWindow peekWindow(ID entity) {
+        Entry entry = entries.get(entity);
+        return entry == null ? null : entry.snapshot.get().window;
+    }
+
+    //
+    //  Traces
+    //
+
+    Map<Long, List<String>> getTraces(ID entity) {
+        Entry entry = getEntry(entity, false);
+        Map<Long, List<String>> traces = entry == null ? null : entry.snapshot.get().traces;
+        record(traces != null);
+        return traces;
+    }
+
+    /**
+     *  Put traces loaded from database
+     *
+     * @param entity  - conversation ID
+     * @param traces  - traces by message rowid
+     * @param size    - estimated bytes
+     * @param version - snapshot version before loading
+     * @return false on the conversation changed while loading
+     */
+    boolean setTraces(ID entity, Map<Long, List<String>> traces, int size, long version) {
+        Map<Long, List<String>> map = new HashMap<>();
+        for (Map.Entry<Long, List<String>> item : traces.entrySet()) {
+            map.put(item.getKey(), Collections.unmodifiableList(new ArrayList<>(item.getValue())));
+        }
+        map = Collections.unmodifiableMap(map);
+        Entry entry = getEntry(entity, true);
+        Snapshot current = entry.snapshot.get();
+        boolean ok = current.version == version
+                && entry.snapshot.compareAndSet(current, current.withTraces(version, map, size));
+        trim();
+        return ok;
+    }
+
+    /**
+     *  Append trace into the cached traces map, drop the map if loading
+     *
+     * @param entity    - conversation ID
+     * @param mid       - message rowid
+     * @param trace     - ID string of the trace
+     */
+    void addTrace(ID entity, long mid, String trace) {
+        Entry entry = entries.get(entity);
+        if (entry == null) {
+            return;
+        }
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = entry.snapshot.get();
+            if (current.traces == null) {
+                // not loaded, or loading
+                next = current.withTraces(versions.incrementAndGet(), null, 0);
+            } else {
+                List<String> array = current.traces.get(mid);
+                if (array == null) {
+                    array = new ArrayList<>();
+                } else if (array.contains(trace)) {
+                    return;
+                } else {
+                    array = new ArrayList<>(array);
+                }
+                array.add(trace);
+                Map<Long, List<String>> map = new HashMap<>(current.traces);
+                map.put(mid, Collections.unmodifiableList(array));
+                next = current.withTraces(current.version, Collections.unmodifiableMap(map),
+                        current.tracesSize + INDEX_OVERHEAD + trace.length() * 2);
+            }
+        } while (!entry.snapshot.compareAndSet(current, next));
+    }
+
+    /**
+     *  Drop traces map of the conversation for reloading
+     *
+     * @param entity - conversation ID
+     */
+    void removeTraces(ID entity) {
+        Entry entry = entries.get(entity);
+        if (entry != null) {
+            invalidate(entry, false, true);
+        }
+    }
+
+    //
+    //  Message indexes
+    //
+
+    /**
+     *  Remember rowid of the message for applying receipts
+     *
+     * @param entity    - conversation ID
+     * @param mid       - message rowid
+     * @param sn        - serial number of message content
+     * @param signature - first 8 chars of message signature
+     */
+    void indexMessage(ID entity, long mid, long sn, String signature) {
+        Entry entry = getEntry(entity, true);
+        if (sn > 0) {
+            entry.snIndex.put(sn, mid);
+        }
+        if (signature != null && signature.length() > 0) {
+            entry.signatureIndex.put(signature, mid);
+        }
+    }
+
+    /**
+     *  Get rowid of the message with sn or signature
+     *
+     * @param entity    - conversation ID
+     * @param sn        - serial number of message content
+     * @param signature - first 8 chars of message signature
+     * @return 0 on not indexed
+     */
+    long findMessage(ID entity, long sn, String signature) {
+        Entry entry = entries.get(entity);
+        Long mid = null;
+        if (entry != null) {
+            if (sn > 0) {
+                mid = entry.snIndex.get(sn);
+            }
+            if (mid == null && signature != null && signature.length() > 0) {
+                mid = entry.signatureIndex.get(signature);
+            }
+        }
+        record(mid != null);
+        return mid == null ? 0 : mid;
+    }
+
+    /**
+     *  Forget the removed message
+     *
+     * @param entity    - conversation ID
+     * @param mid       - message rowid
+     * @param sn        - serial number of message content
+     * @param signature - first 8 chars of message signature
+     */
+    void removeMessage(ID entity, long mid, long sn, String signature) {
+        Entry entry = entries.get(entity);
+        if (entry == null) {
+            return;
+        }
+        entry.snIndex.remove(sn);
+        if (signature != null) {
+            entry.signatureIndex.remove(signature);
+        }
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = entry.snapshot.get();
+            if (current.traces == null || !current.traces.containsKey(mid)) {
+                return;
+            }
+            Map<Long, List<String>> map = new HashMap<>(current.traces);
+            map.remove(mid);
+            next = current.withTraces(current.version, Collections.unmodifiableMap(map), current.tracesSize);
+        } while (!entry.snapshot.compareAndSet(current, next));
+    }
+
+    //
+    //  Last visible messages
+    //
+
+    InstantMessage getLastVisibleMessage(ID entity) {
+        Entry entry = getEntry(entity, false);
+        InstantMessage iMsg = entry == null ? null : entry.snapshot.get().lastVisibleMessage;
+        record(iMsg != null);
+        return iMsg;
+    }
+
+    /**
+     *  Put last visible message loaded from database
+     *
+     * @param entity  - conversation ID
+     * @param iMsg    - last visible message
+     * @param size    - estimated bytes
+     * @param version - snapshot version before loading
+     * @return false on the conversation changed while loading
+     */
+    boolean setLastVisibleMessage(ID entity, InstantMessage iMsg, int size, long version) {
+        Entry entry = getEntry(entity, true);
+        Snapshot current = entry.snapshot.get();
+        boolean ok = current.version == version
+                && entry.snapshot.compareAndSet(current, current.withLastVisible(iMsg, size));
+        trim();
+        return ok;
+    }
+
+    //
+    //  Invalidation
+    //
+
+    /**
+     *  Drop messages of the conversation (after inserted/removed),
+     *  the traces and indexes are kept
+     *
+     * @param entity - conversation ID
+     */
+    void removeMessages(ID entity) {
+        Entry entry = entries.get(entity);
+        if (entry != null) {
+            invalidate(entry, true, false);
+        }
+    }
+
+    /**
+     *  Drop all caches of the conversation
+     *
+     * @param entity - conversation ID
+     */
+    void remove(ID entity) {
+        Entry entry = entries.remove(entity);
+        if (entry != null) {
+            // loaders holding this entry won't publish any more
+            invalidate(entry, true, true);
+        }
+    }
+
+    // entry with its access time at the moment of trimming
+    private static final class Candidate {
+
+        final ID entity;
+        final Entry entry;
+        final long accessed;
+
+        Candidate(ID entity, Entry entry, long accessed) {
+            super();
+            this.entity = entity;
+            this.entry = entry;
+            this.accessed = accessed;
+        }
+    }
+
+    /**
+     *  Evict least recently used conversations when total bytes exceed the budget,
+     *  call it after pages loaded
+     */
+    void trim() {
+        if (!trimming.compareAndSet(false, true)) {
+            // another thread is trimming
+            return;
+        }
+        try {
+            int total = 0;
+            List<Candidate> array = new ArrayList<>(entries.size());
+            for (Map.Entry<ID, Entry> item : entries.entrySet()) {
+                // readers keep touching 'accessed', sort the values copied
+                array.add(new Candidate(item.getKey(), item.getValue(), item.getValue().accessed));
+                total += item.getValue().size();
+            }
+            if (total <= capacity) {
+                return;
+            }
+            // least recently used first
+            Collections.sort(array, new Comparator<Candidate>() {
+                @Override
+                public int compare(Candidate c1, Candidate c2) {
+                    return c1.accessed < c2.accessed ? -1 : (c1.accessed == c2.accessed ? 0 : 1);
+                }
+            });
+            Candidate item;
+            // keep the most recently used one
+            for (int index = 0; total > capacity && index < array.size() - 1; ++index) {
+                item = array.get(index);
+                total -= item.entry.size();
+                entries.remove(item.entity, item.entry);
+                Log.info("message cache evicted: " + item.entity + ", total bytes: " + total);
+            }
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    //
+    //  Statistics
+    //
+
+    int getHitCount() {
+        return hits.get();
+    }
+
+    int getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "<MessageCache conversations=" + entries.size() + " hits=" + hits.get() + " misses=" + misses.get() + " />";
+    }
+}
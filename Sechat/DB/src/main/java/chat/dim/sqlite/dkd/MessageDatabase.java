@@ -44,6 +44,14 @@ public final class MessageDatabase extends Database {
 
     public static Messenger messenger = null;
 
+    // store new contents in binary format, see ContentCoder
+    public static boolean binaryContent = true;
+
+    // retention: messages kept in 't_message' for each conversation,
+    // older ones will be moved into archive, see ArchiveTable
+    public static int retentionCount = 5000;
+    public static long retentionAge = 180L * 24 * 3600;  // seconds
+
     private static MessageDatabase ourInstance = null;
 
     static MessageDatabase getInstance() {
@@ -54,10 +62,16 @@ public final class MessageDatabase extends Database {
     }
 
     private static final String DB_NAME = "dkd.db";
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 11;
 
     static final String T_MESSAGE = "t_message";
     static final String T_TRACE = "t_trace";
+    static final String T_MESSAGE_FTS = "t_message_fts";
+    static final String T_ARCHIVE = "t_archive";
+    static final String T_ARCHIVED = "t_archived";
+    static final String T_LATEST = "t_latest";
+
+    static final String T_CONVERSATION = "t_conversation";
 
     //
     //  SQLiteOpenHelper
@@ -70,16 +84,150 @@ public final class MessageDatabase extends Database {
                 // content info
                 " content TEXT, type INTEGER, sn VARCHAR(20)," +
                 // extra info
-                " signature VARCHAR(8), read BIT)");
+                " signature VARCHAR(8), read BIT," +
+                // content format: 0 - JSON in 'content', 1 - binary in 'data'
+                " format INTEGER, data BLOB)");
         db.execSQL("CREATE INDEX cid_index ON " + T_MESSAGE + "(cid)");
+        createTimeIndex(db);
+        createReadIndex(db);
 
         // traces for messages
-        db.execSQL("CREATE TABLE " + T_TRACE + "(cid VARCHAR(64), sn VARCHAR(20), signature VARCHAR(8), trace TEXT)");
+        db.execSQL("CREATE TABLE " + T_TRACE + "(cid VARCHAR(64), sn VARCHAR(20), signature VARCHAR(8), trace TEXT," +
+                // rowid of the message in t_message, NULL for receipt arrived before the message
+                " mid INTEGER)");
         db.execSQL("CREATE INDEX trace_id_index ON " + T_TRACE + "(cid)");
+        createUniqueIndexes(db);
+        createTraceIndex(db);
+
+        // conversations
+        createConversationTable(db);
+
+        // full-text index
+        createSearchTable(db);
+
+        // archived segments
+        createArchiveTable(db);
+        createArchivedTable(db);
+
+        // latest messages
+        createLatestTable(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createTimeIndex(db);
+        }
+        if (oldVersion < 3) {
+            createConversationTable(db);
+            buildConversations(db);
+        }
+        if (oldVersion < 4) {
+            // remove duplicated records before creating unique indexes
+            db.execSQL("DELETE FROM " + T_MESSAGE + " WHERE rowid NOT IN" +
+                    " (SELECT MIN(rowid) FROM " + T_MESSAGE + " GROUP BY cid, sender, sn)");
+            db.execSQL("DELETE FROM " + T_TRACE + " WHERE rowid NOT IN" +
+                    " (SELECT MIN(rowid) FROM " + T_TRACE + " GROUP BY cid, sn, trace)");
+            createUniqueIndexes(db);
+            // rebuild summaries
+            db.execSQL("DELETE FROM " + T_CONVERSATION);
+            buildConversations(db);
+        }
+        if (oldVersion < 5) {
+            db.execSQL("ALTER TABLE " + T_TRACE + " ADD COLUMN mid INTEGER");
+            // link traces to messages by sn or signature
+            db.execSQL("UPDATE " + T_TRACE + " SET mid=(SELECT rowid FROM " + T_MESSAGE + " m" +
+                    " WHERE m.cid=" + T_TRACE + ".cid AND ((" + T_TRACE + ".sn!='0' AND m.sn=" + T_TRACE + ".sn)" +
+                    " OR (" + T_TRACE + ".signature!='' AND m.signature=" + T_TRACE + ".signature)) LIMIT 1)");
+            createTraceIndex(db);
+        }
+        if (oldVersion < 6) {
+            createSearchTable(db);
+            SearchTable.buildIndex(db);
+        }
+        if (oldVersion < 7) {
+            // existing contents will be converted by ContentMigrator
+            db.execSQL("ALTER TABLE " + T_MESSAGE + " ADD COLUMN format INTEGER");
+            db.execSQL("ALTER TABLE " + T_MESSAGE + " ADD COLUMN data BLOB");
+        }
+        if (oldVersion < 8) {
+            createArchiveTable(db);
+        }
+        if (oldVersion < 9) {
+            // pointers will be built on first query
+            createLatestTable(db);
+        }
+        if (oldVersion < 10) {
+            createReadIndex(db);
+        }
+        if (oldVersion < 11) {
+            createArchivedTable(db);
+        }
+    }
+
+    private void createReadIndex(SQLiteDatabase db) {
+        // for clearing & counting unread messages of conversation
+        // (partial index 'WHERE read=0' is not supported before SQLite 3.8)
+        db.execSQL("CREATE INDEX msg_read_index ON " + T_MESSAGE + "(cid, read)");
+    }
+
+    private void createLatestTable(SQLiteDatabase db) {
+        // slot 1: latest message; slot 2: latest message from another sender
+        db.execSQL("CREATE TABLE " + T_LATEST + "(slot INTEGER PRIMARY KEY, mid INTEGER, time INTEGER, sender VARCHAR(64))");
+        // for rebuilding the pointers without sorting all messages
+        db.execSQL("CREATE INDEX msg_recent_index ON " + T_MESSAGE + "(time)");
+    }
+
+    private void createArchiveTable(SQLiteDatabase db) {
+        // segment files of archived messages, with the range of (time, rowid) in each
+        db.execSQL("CREATE TABLE " + T_ARCHIVE + "(cid VARCHAR(64), filename TEXT," +
+                " first_time INTEGER, first_mid INTEGER, last_time INTEGER, last_mid INTEGER, count INTEGER)");
+        db.execSQL("CREATE INDEX archive_cid_index ON " + T_ARCHIVE + "(cid, last_time)");
+    }
+
+    private void createArchivedTable(SQLiteDatabase db) {
+        // segment file of each archived message, for finding it by rowid (docid in full-text index)
+        db.execSQL("CREATE TABLE " + T_ARCHIVED + "(mid INTEGER PRIMARY KEY, cid VARCHAR(64), filename TEXT)");
+        db.execSQL("CREATE INDEX archived_cid_index ON " + T_ARCHIVED + "(cid)");
+    }
+
+    private void createSearchTable(SQLiteDatabase db) {
+        // text of messages, docid is the rowid in t_message
+        db.execSQL("CREATE VIRTUAL TABLE " + T_MESSAGE_FTS + " USING fts4(text)");
+    }
+
+    private void createTraceIndex(SQLiteDatabase db) {
+        // for loading & removing traces of message
+        db.execSQL("CREATE INDEX trace_mid_index ON " + T_TRACE + "(mid)");
+    }
+
+    private void createUniqueIndexes(SQLiteDatabase db) {
+        // for dropping duplicated records by 'INSERT OR IGNORE'
+        db.execSQL("CREATE UNIQUE INDEX msg_sn_index ON " + T_MESSAGE + "(cid, sender, sn)");
+        db.execSQL("CREATE UNIQUE INDEX trace_sn_index ON " + T_TRACE + "(cid, sn, trace)");
+    }
+
+    private void buildConversations(SQLiteDatabase db) {
+        // build summaries from messages
+        db.execSQL("INSERT INTO " + T_CONVERSATION + "(cid, last_time, last_mid, unread_count)" +
+                " SELECT cid, MAX(time), 0, SUM(CASE WHEN read!=1 THEN 1 ELSE 0 END)" +
+                " FROM " + T_MESSAGE + " GROUP BY cid");
+        db.execSQL("UPDATE " + T_CONVERSATION + " SET last_mid=IFNULL((SELECT rowid FROM " + T_MESSAGE +
+                " WHERE " + T_MESSAGE + ".cid=" + T_CONVERSATION + ".cid AND type IN " + ConversationTable.VISIBLE_TYPES +
+                " ORDER BY time DESC, rowid DESC LIMIT 1), 0)");
+    }
+
+    private void createConversationTable(SQLiteDatabase db) {
+        // summary of conversations, updated with messages in the same transaction
+        db.execSQL("CREATE TABLE " + T_CONVERSATION + "(cid VARCHAR(64) PRIMARY KEY, type INTEGER," +
+                // last message time, last visible message (rowid in t_message)
+                " last_time INTEGER, last_mid INTEGER, unread_count INTEGER)");
+        db.execSQL("CREATE INDEX conversation_time_index ON " + T_CONVERSATION + "(last_time)");
+    }
+
+    private void createTimeIndex(SQLiteDatabase db) {
+        // for loading messages page by page with keyset (time, rowid)
+        db.execSQL("CREATE INDEX msg_time_index ON " + T_MESSAGE + "(cid, time)");
     }
 
     //
@@ -92,8 +240,12 @@ public final class MessageDatabase extends Database {
         if (dict == null) {
             throw new NullPointerException("message content error: " + content);
         }
+        return getInstanceMessage(sender, receiver, timestamp, (Map<String, Object>) dict);
+    }
+
+    static InstantMessage getInstanceMessage(String sender, String receiver, long timestamp, Map<String, Object> dict) {
         // FIXME: fix a typo: 'tine' => 'time' in message content
-        fixTine((Map<String, Object>) dict);
+        fixTine(dict);
         Map<String, Object> msg = new HashMap<>();
         msg.put("sender", sender);
         msg.put("receiver", receiver);
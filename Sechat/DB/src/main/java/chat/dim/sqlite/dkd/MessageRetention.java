@@ -0,0 +1,137 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.sqlite.dkd;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import chat.dim.log.Log;
+import chat.dim.protocol.ID;
+import chat.dim.sqlite.DataTable;
+import chat.dim.sqlite.Database;
+
+/**
+ *  Message retention
+ *  ~~~~~~~~~~~~~~~~~
+ *
+ *  Moves messages beyond 'retentionCount' or older than 'retentionAge'
+ *  into archive periodically, then updates statistics (ANALYZE) and
+ *  reclaims free pages (VACUUM) to keep 't_message' small.
+ */
+final class MessageRetention extends DataTable implements Runnable {
+
+    // first run after launched, then run periodically
+    private static final long START_DELAY = 60;          // seconds
+    private static final long RUN_INTERVAL = 6 * 3600;   // seconds
+
+    // vacuum when free pages more than 1/4
+    private static final int VACUUM_RATIO = 4;
+
+    private final MessageTable messageTable;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    MessageRetention(MessageTable table) {
+        super();
+        messageTable = table;
+    }
+
+    @Override
+    protected Database getDatabase() {
+        return MessageDatabase.getInstance();
+    }
+
+    void start() {
+        scheduler.scheduleWithFixedDelay(this, START_DELAY, RUN_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (archive() > 0) {
+                analyze();
+                vacuum();
+            }
+        } catch (SQLiteException e) {
+            // an exception would cancel the schedule
+            e.printStackTrace();
+        }
+    }
+
+    // move old messages of all conversations into archive
+    private int archive() {
+        List<ID> conversations = new ArrayList<>();
+        int count = messageTable.numberOfConversations();
+        ID entity;
+        for (int index = 0; index < count; ++index) {
+            entity = messageTable.conversationAtIndex(index);
+            if (entity != null) {
+                conversations.add(entity);
+            }
+        }
+        long before = System.currentTimeMillis() / 1000 - MessageDatabase.retentionAge;
+        int total = 0;
+        for (ID item : conversations) {
+            total += messageTable.archiveMessages(item, MessageDatabase.retentionCount, before);
+        }
+        if (total > 0) {
+            Log.info("retention: " + total + " messages archived from " + conversations.size() + " conversations");
+        }
+        return total;
+    }
+
+    // refresh statistics for the query planner
+    private void analyze() {
+        write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                getDatabase().getWritableDatabase().execSQL("ANALYZE");
+                return true;
+            }
+        }, false);
+    }
+
+    // VACUUM can't run within a transaction, so it runs here instead of the writer thread;
+    // it waits for the writer to release the connection
+    private void vacuum() {
+        long pages = queryForLong("PRAGMA page_count", 0);
+        long free = queryForLong("PRAGMA freelist_count", 0);
+        if (free * VACUUM_RATIO < pages) {
+            return;
+        }
+        SQLiteDatabase db = getDatabase().getWritableDatabase();
+        long start = System.currentTimeMillis();
+        db.execSQL("VACUUM");
+        Log.info("retention: vacuum " + free + "/" + pages + " free pages, cost " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -0,0 +1,241 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.sqlite.dkd;
+
+import android.database.Cursor;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import chat.dim.database.ContentCoder;
+import chat.dim.format.Base64;
+import chat.dim.protocol.InstantMessage;
+
+/**
+ *  Message row in 't_message'
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Holds the primitive columns only,
+ *  the content (JSON or binary) will be decoded on first access and then memoized.
+ */
+final class MessageRow {
+
+    // columns for creating row from cursor
+    static final String[] COLUMNS = {"rowid", "sender", "receiver", "time", "type", "sn", "signature", "read", "format", "content", "data"};
+
+    final long rowid;
+
+    final String sender;
+    final String receiver;
+    final long time;  // seconds
+
+    final int type;
+    final long sn;
+    final String signature;
+    final boolean read;
+
+    // raw JSON or binary content, released after decoded (kept on content error)
+    private String content;
+    private byte[] data;
+    private boolean broken = false;
+    // immutable, replaced when a trace appended
+    private volatile List<String> traces = null;
+
+    // published after decoded, never mutated; replaced by a copy when a trace appended
+    private volatile InstantMessage message = null;
+
+    private MessageRow(Cursor cursor) {
+        super();
+        rowid = cursor.getLong(0);
+        sender = cursor.getString(1);
+        receiver = cursor.getString(2);
+        time = cursor.getLong(3);
+        type = cursor.getInt(4);
+        sn = cursor.getLong(5);
+        signature = cursor.getString(6);
+        read = cursor.getInt(7) == 1;
+        if (cursor.getInt(8) == ContentCoder.FORMAT_BINARY) {
+            content = null;
+            data = cursor.getBlob(10);
+        } else {
+            content = cursor.getString(9);
+            data = null;
+        }
+    }
+
+    /**
+     *  Create row with current position of the cursor
+     *
+     * @param cursor - cursor queried with COLUMNS
+     * @return message row
+     */
+    static MessageRow from(Cursor cursor) {
+        return new MessageRow(cursor);
+    }
+
+    /**
+     *  Estimate memory size of this row
+     *
+     * @return bytes
+     */
+    int getSize() {
+        int size = MessageCache.sizeOf(sender, receiver, content, signature);
+        if (data != null) {
+            size += data.length;
+        }
+        return size;
+    }
+
+    void setTraces(List<String> array) {
+        traces = array == null ? null : Collections.unmodifiableList(new ArrayList<>(array));
+    }
+
+    /**
+     *  Append trace, the decoded message will be replaced by a copy with new traces,
+     *  so readers holding the old one will never see it changed
+     *
+     * @param trace - ID string
+     */
+    synchronized void addTrace(String trace) {
+        List<String> array = traces;
+        if (array == null) {
+            array = new ArrayList<>();
+        } else if (array.contains(trace)) {
+            return;
+        } else {
+            array = new ArrayList<>(array);
+        }
+        array.add(trace);
+        array = Collections.unmodifiableList(array);
+        InstantMessage msg = message;
+        if (msg != null) {
+            Map<String, Object> info = new HashMap<>(msg.toMap());
+            info.put("traces", array);
+            msg = InstantMessage.parse(info);
+            if (msg != null) {
+                message = msg;
+            }
+        }
+        traces = array;
+    }
+
+    /**
+     *  Decode the message on first access
+     *
+     * @return null on content error
+     */
+    InstantMessage getMessage() {
+        InstantMessage msg = message;
+        if (msg != null) {
+            return msg;
+        }
+        return decode();
+    }
+
+    private synchronized InstantMessage decode() {
+        if (message == null && !broken && (content != null || data != null)) {
+            InstantMessage msg;
+            try {
+                if (data != null) {
+                    msg = MessageDatabase.getInstanceMessage(sender, receiver, time, ContentCoder.decode(data));
+                } else {
+                    msg = MessageDatabase.getInstanceMessage(sender, receiver, time, content);
+                }
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                msg = null;
+            }
+            if (msg == null) {
+                // keep the raw content, see toRaw()
+                broken = true;
+            } else {
+                content = null;
+                data = null;
+                // signature
+                if (signature != null && signature.length() > 0) {
+                    msg.put("signature", signature);
+                }
+                // traces
+                List<String> array = traces;
+                if (array != null && array.size() > 0) {
+                    msg.put("traces", array);
+                }
+            }
+            message = msg;
+        }
+        return message;
+    }
+
+    /**
+     *  Get primitive columns, for archiving the row whose content can't be decoded
+     *
+     * @return raw info, with JSON 'content' or base64 'data'
+     */
+    synchronized Map<String, Object> toRaw() {
+        Map<String, Object> info = new HashMap<>();
+        info.put("sender", sender);
+        info.put("receiver", receiver);
+        info.put("time", time);
+        info.put("type", type);
+        info.put("sn", sn);
+        if (signature != null) {
+            info.put("signature", signature);
+        }
+        if (data != null) {
+            info.put("data", Base64.encode(data));
+        } else if (content != null) {
+            info.put("content", content);
+        }
+        return info;
+    }
+
+    /**
+     *  Messages list decoded on access
+     */
+    static final class LazyList extends AbstractList<InstantMessage> {
+
+        private final List<MessageRow> rows;
+
+        LazyList(List<MessageRow> rows) {
+            super();
+            this.rows = rows;
+        }
+
+        @Override
+        public InstantMessage get(int index) {
+            return rows.get(index).getMessage();
+        }
+
+        @Override
+        public int size() {
+            return rows.size();
+        }
+    }
+}
@@ -31,16 +31,19 @@ import android.database.sqlite.SQLiteCantOpenDatabaseException;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import chat.dim.database.ContentCoder;
 import chat.dim.format.JSON;
 import chat.dim.log.Log;
 import chat.dim.protocol.Content;
-import chat.dim.protocol.EntityType;
 import chat.dim.protocol.Envelope;
 import chat.dim.protocol.ID;
 import chat.dim.protocol.InstantMessage;
@@ -53,6 +56,12 @@ public final class MessageTable extends DataTable implements chat.dim.database.M
 
     private MessageTable() {
         super();
+        if (MessageDatabase.binaryContent) {
+            // convert existing JSON contents
+            new ContentMigrator().start();
+        }
+        // move old messages into archive periodically
+        new MessageRetention(this).start();
     }
 
     private static MessageTable ourInstance;
@@ -68,60 +77,59 @@ public final class MessageTable extends DataTable implements chat.dim.database.M
         return MessageDatabase.getInstance();
     }
 
+    // hot statements, compiled once per thread
+    private static final String SQL_INSERT_MESSAGE = "INSERT OR IGNORE INTO " + MessageDatabase.T_MESSAGE
+            + " (cid, sender, receiver, time, format, content, data, type, sn, signature, read)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    // with rowid after the archived ones
+    private static final String SQL_INSERT_MESSAGE_AT = "INSERT OR IGNORE INTO " + MessageDatabase.T_MESSAGE
+            + " (rowid, cid, sender, receiver, time, format, content, data, type, sn, signature, read)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_MAX_ROWID = "SELECT IFNULL(MAX(rowid), 0) FROM " + MessageDatabase.T_MESSAGE;
+    private static final String SQL_INSERT_TRACE = "INSERT OR IGNORE INTO " + MessageDatabase.T_TRACE
+            + " (cid, sn, signature, trace, mid) VALUES (?, ?, ?, ?, ?)";
+    private static final String SQL_FIND_BY_SN = "SELECT rowid FROM " + MessageDatabase.T_MESSAGE
+            + " WHERE cid=? AND sender=? AND sn=? ORDER BY rowid DESC LIMIT 1";
+    private static final String SQL_FIND_BY_SN_OR_SIG = "SELECT rowid FROM " + MessageDatabase.T_MESSAGE
+            + " WHERE cid=? AND (sn=? OR signature=?) ORDER BY rowid DESC LIMIT 1";
+
     //
     //  chat.dim.database.MessageTable
     //
 
     //---- conversations
 
-    private List<ID> conversations = null;
+    private final ConversationTable conversationTable = new ConversationTable();
 
-    private List<ID> allConversations() {
-        if (conversations != null) {
-            return conversations;
-        }
-        String[] columns = {"cid"};
-        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, columns, null, null, "cid", null, null)) {
-            // get conversation IDs
-            List<ID> array = new ArrayList<>();
-            ID identifier;
-            while (cursor.moveToNext()) {
-                identifier = ID.parse(cursor.getString(0));
-                if (identifier == null) {
-                    continue;
-                } else if (identifier.getType() == EntityType.STATION.value) {
-                    // TODO: set flag to ignore message from station
-                    continue;
-                }
-                array.add(identifier);
-            }
-            // sort by last message time
-            Comparator<ID> comparator = new Comparator<ID>() {
-                @Override
-                public int compare(ID cid1, ID cid2) {
-                    Date time1, time2;
-                    InstantMessage msg1 = MessageTable.this.lastMessage(cid1);
-                    if (msg1 == null) {
-                        time1 = new Date();
-                    } else {
-                        time1 = msg1.getTime();
-                    }
-                    InstantMessage msg2 = MessageTable.this.lastMessage(cid2);
-                    if (msg2 == null) {
-                        time2 = new Date();
-                    } else {
-                        time2 = msg2.getTime();
-                    }
-                    return time2.compareTo(time1);
-                }
-            };
-            Collections.sort(array, comparator);
+    private final SearchTable searchTable = new SearchTable();
+
+    // pointers to the latest messages, and the last received one loaded
+    private final LatestTable latestTable = new LatestTable();
+    private volatile MessageRow lastReceived = null;
 
+    // unmodifiable snapshot, dropped after any change
+    private volatile List<ID> conversations = null;
+    // increased for each change, to drop the list loaded before it
+    private final AtomicInteger conversationsVersion = new AtomicInteger(0);
+
+    private List<ID> allConversations() {
+        List<ID> array = conversations;
+        if (array == null) {
+            int version = conversationsVersion.get();
+            // sorted by last message time
+            array = Collections.unmodifiableList(conversationTable.allConversations());
             conversations = array;
-        } catch (SQLiteCantOpenDatabaseException e) {
-            e.printStackTrace();
+            if (version != conversationsVersion.get()) {
+                // changed while loading
+                conversations = null;
+            }
         }
-        return conversations;
+        return array;
+    }
+
+    private void clearConversations() {
+        conversationsVersion.incrementAndGet();
+        conversations = null;
     }
 
     @Override
@@ -152,156 +160,351 @@ public final class MessageTable extends DataTable implements chat.dim.database.M
     }
 
     @Override
-    public boolean removeConversation(ID identifier) {
-        clearCaches(identifier);
+    public boolean removeConversation(final ID identifier) {
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return deleteConversation(identifier);
+            }
+        }, false);
+    }
+
+    // call it on the writer thread
+    private boolean deleteConversation(ID identifier) {
         String[] whereArgs = {identifier.toString()};
+        searchTable.removeConversation(identifier);
         delete(MessageDatabase.T_TRACE, "cid=?", whereArgs);
-        return delete(MessageDatabase.T_MESSAGE, "cid=?", whereArgs) > 0;
+        boolean ok = delete(MessageDatabase.T_MESSAGE, "cid=?", whereArgs) > 0;
+        archiveTable.removeConversation(identifier);
+        conversationTable.remove(identifier);
+        latestTable.reset();
+        removeCaches(identifier);
+        return ok;
     }
 
-    //-------- messages
+    //-------- retention
 
-    private ID cachedMessagesID = null;
-    private List<InstantMessage> cachedMessages = null;
+    // the newest messages won't be archived
+    private static final int MIN_KEPT = MessageWindow.PAGE_SIZE;
 
-    private ID cachedTracesID = null;
-    private Map<String, List<String>> cachedTraces = null;
+    private final ArchiveTable archiveTable = new ArchiveTable();
 
-    private void clearCaches(ID entity) {
-        if (entity.equals(cachedMessagesID)) {
-            cachedMessagesID = null;
-            cachedMessages = null;
+    /**
+     *  Move old messages of the conversation into archive
+     *
+     * @param entity   - conversation ID
+     * @param maxCount - max messages kept in 't_message'
+     * @param before   - messages before this time (seconds) will be archived
+     * @return count of messages archived
+     */
+    int archiveMessages(final ID entity, final int maxCount, final long before) {
+        return write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return moveToArchive(entity, maxCount, before);
+            }
+        }, 0);
+    }
+
+    // "(time<T OR (time=T AND rowid<R))"
+    private static String olderThan(long time, long rowid) {
+        return "(time<" + time + " OR (time=" + time + " AND rowid<" + rowid + "))";
+    }
+
+    // get (time, rowid) of the message at offset, newest first
+    private long[] keysetAt(ID entity, int offset) {
+        String[] columns = {"time", "rowid"};
+        String[] selectionArgs = {entity.toString()};
+        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, columns, "cid=?", selectionArgs, null, null,
+                "time DESC, rowid DESC LIMIT 1 OFFSET " + offset)) {
+            if (cursor.moveToNext()) {
+                return new long[]{cursor.getLong(0), cursor.getLong(1)};
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
         }
-        if (entity.equals(cachedTracesID)) {
-            cachedTracesID = null;
-            cachedTraces = null;
+        return null;
+    }
+
+    // high-water mark of archived rowids, -1 means unknown; accessed by the writer thread only,
+    // it may be higher than the committed one after rolled back, which just skips some rowids
+    private long archivedRowid = -1;
+
+    private long maxArchivedRowid() {
+        if (archivedRowid < 0) {
+            archivedRowid = archiveTable.maxRowid();
         }
-        conversations = null;
+        return archivedRowid;
     }
 
-    private Map<String, List<String>> tracesInConversation(ID entity) {
-        if (entity.equals(cachedTracesID) && cachedTraces != null) {
-            return cachedTraces;
+    // call it on the writer thread
+    private int moveToArchive(ID entity, int maxCount, long before) {
+        long[] kept = keysetAt(entity, MIN_KEPT - 1);
+        if (kept == null) {
+            // too few messages
+            return 0;
+        }
+        // archived messages must be older than all messages kept,
+        // so paging by (time, rowid) can go on from 't_message' to archive
+        String selection = "cid=? AND " + olderThan(kept[0], kept[1]);
+        long[] bound = maxCount > MIN_KEPT ? keysetAt(entity, maxCount - 1) : kept;
+        if (bound == null) {
+            // count not exceeded, archive by age only
+            selection += " AND time<" + before;
+        } else {
+            selection += " AND (time<" + before + " OR " + olderThan(bound[0], bound[1]) + ")";
         }
-        String[] columns = {"sn, signature, trace"};
         String[] selectionArgs = {entity.toString()};
-        try (Cursor cursor = query(MessageDatabase.T_TRACE, columns, "cid=?", selectionArgs, null, null, null)) {
-            Map<String, List<String>> traces = new HashMap<>();
+        // cached traces may miss the ones written in this transaction
+        Map<Long, List<String>> traces = loadTraces(entity);
+        List<MessageRow> rows = new ArrayList<>();
+        int total = 0;
+        do {
+            rows.clear();
+            // oldest first, one segment each time
+            try (Cursor cursor = query(MessageDatabase.T_MESSAGE, MessageRow.COLUMNS, selection, selectionArgs, null, null,
+                    "time, rowid LIMIT " + ArchiveTable.SEGMENT_SIZE)) {
+                MessageRow row;
+                while (cursor.moveToNext()) {
+                    row = MessageRow.from(cursor);
+                    row.setTraces(getTraces(traces, row.rowid));
+                    rows.add(row);
+                }
+            } catch (SQLiteCantOpenDatabaseException e) {
+                e.printStackTrace();
+                break;
+            }
+            if (rows.size() == 0 || !archiveTable.saveSegment(entity, rows)) {
+                break;
+            }
+            // remove archived messages from hot tables,
+            // the full-text index is kept for searching them (see 't_archived')
+            StringBuilder sb = new StringBuilder();
+            for (MessageRow row : rows) {
+                if (sb.length() > 0) {
+                    sb.append(",");
+                }
+                sb.append(row.rowid);
+            }
+            delete(MessageDatabase.T_TRACE, "mid IN (" + sb + ")", null);
+            delete(MessageDatabase.T_MESSAGE, "rowid IN (" + sb + ")", null);
+            for (MessageRow row : rows) {
+                latestTable.didRemoveMessage(row.rowid);
+                if (row.rowid > maxArchivedRowid()) {
+                    archivedRowid = row.rowid;
+                }
+            }
+            total += rows.size();
+        } while (rows.size() >= ArchiveTable.SEGMENT_SIZE);
+        if (total > 0) {
+            Log.info("messages archived: " + entity + ", " + total);
+            // unread count may be changed
+            conversationTable.refresh(entity);
+            // rowids in windows & indexes are gone
+            removeCaches(entity);
+        }
+        return total;
+    }
+
+    //-------- messages
+
+    // windows, traces & last visible messages of recent conversations
+    private final MessageCache cache = new MessageCache(MessageCache.MAX_BYTES);
+
+    // memory caches are changed after committed, for the write task
+    // may be rolled back and run again; call them on the writer thread
+
+    private void clearCaches(final ID entity) {
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                // drop messages of this conversation only
+                cache.removeMessages(entity);
+                clearConversations();
+            }
+        });
+    }
+
+    private void removeCaches(final ID entity) {
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                cache.remove(entity);
+                clearConversations();
+            }
+        });
+    }
+
+    private void indexMessage(final ID entity, final long rowid, final long sn, final String signature) {
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                cache.indexMessage(entity, rowid, sn, signature);
+            }
+        });
+    }
+
+    private void uncacheMessage(final ID entity, final long rowid, final long sn, final String signature) {
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                cache.removeMessage(entity, rowid, sn, signature);
+            }
+        });
+    }
+
+    private void addTrace(final ID entity, final long rowid, final String trace) {
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                cache.addTrace(entity, rowid, trace);
+            }
+        });
+    }
+
+    private Map<Long, List<String>> tracesInConversation(ID entity) {
+        Map<Long, List<String>> traces = cache.getTraces(entity);
+        if (traces != null) {
+            return traces;
+        }
+        long version = cache.getVersion(entity);
+        traces = loadTraces(entity);
+        if (traces != null) {
+            int size = 0;
+            for (List<String> array : traces.values()) {
+                for (String value : array) {
+                    size += MessageCache.sizeOf(value);
+                }
+            }
+            cache.setTraces(entity, traces, size, version);
+        }
+        return traces;
+    }
+
+    // load traces of the conversation, grouped by message rowid
+    private Map<Long, List<String>> loadTraces(ID entity) {
+        Map<Long, List<String>> traces = null;
+        String[] columns = {"mid", "trace"};
+        String[] selectionArgs = {entity.toString()};
+        // traces not linked to any message yet are ignored
+        try (Cursor cursor = query(MessageDatabase.T_TRACE, columns, "cid=? AND mid IS NOT NULL", selectionArgs, null, null, null)) {
+            traces = new HashMap<>();
             List<String> array;
-            int sn;
-            String signature;
+            long mid;
             String value;
             while (cursor.moveToNext()) {
-                sn = cursor.getInt(0);
-                signature = cursor.getString(1);
-                value = cursor.getString(2);
+                mid = cursor.getLong(0);
+                value = cursor.getString(1);
                 if (value == null) {
-                    throw new NullPointerException("trace info empty: " + entity + ", sn=" + sn + ", signature=" + signature);
+                    throw new NullPointerException("trace info empty: " + entity + ", mid=" + mid);
                 }
-                // traces by sn
-                if (sn > 0) {
-                    array = traces.get("" + sn);
-                    if (array == null) {
-                        array = new ArrayList<>();
-                        traces.put("" + sn, array);
-                    }
-                    array.add(value);
-                }
-                // traces by signature
-                if (signature != null && signature.length() > 0) {
-                    array = traces.get(signature);
-                    if (array == null) {
-                        array = new ArrayList<>();
-                        traces.put(signature, array);
-                    }
-                    array.add(value);
+                array = traces.get(mid);
+                if (array == null) {
+                    array = new ArrayList<>();
+                    traces.put(mid, array);
                 }
+                array.add(value);
             }
-            cachedTraces = traces;
-            cachedTracesID = entity;
         } catch (SQLiteCantOpenDatabaseException e) {
             e.printStackTrace();
         }
-        return cachedTraces;
+        return traces;
     }
 
-    private List<String> getTraces(Map<String, List<String>> traces, int sn, String signature) {
-        List<String> array1 = null, array2 = null;
-        if (sn > 0) {
-            array1 = traces.get("" + sn);
-        }
-        if (signature != null && signature.length() > 0) {
-            array2 = traces.get(signature);
-        }
-        if (array1 == null || array1.size() == 0) {
-            return array2;
-        } else if (array2 == null || array2.size() == 0) {
-            return array1;
+    // traces of the message, the cached lists are immutable so they can be shared
+    private List<String> getTraces(Map<Long, List<String>> traces, long mid) {
+        if (traces == null) {
+            return null;
         }
-        List<String> array = new ArrayList<>(array1);
-        for (String item: array2) {
-            if (array.contains(item)) {
-                continue;
-            }
-            array.add(item);
+        List<String> array = traces.get(mid);
+        if (array == null || array.size() == 0) {
+            return null;
         }
         return array;
     }
 
-    private List<InstantMessage> messagesInConversation(ID entity) {
-        if (entity.equals(cachedMessagesID) && cachedMessages != null) {
-            return cachedMessages;
-        }
-        Map<String, List<String>> traces = tracesInConversation(entity);
-        if (traces == null) {
-            traces = new HashMap<>();
+    // load messages before (time, rowid) with index 'msg_time_index'
+    // set into the window at index if window not null
+    private MessagePage loadPage(ID entity, long time, long rowid, int limit, MessageWindow window, int index) {
+        awaitWrites(entity);
+        Map<Long, List<String>> traces = tracesInConversation(entity);
+        String selection;
+        if (time > 0) {
+            selection = "cid=? AND (time<" + time + " OR (time=" + time + " AND rowid<" + rowid + "))";
+        } else {
+            selection = "cid=?";
         }
-        String[] columns = {"sender", "receiver", "time", "content", "sn", "signature"};
+        // query one more row to check whether older messages exist
+        String orderBy = "time DESC, rowid DESC LIMIT " + (limit + 1);
         String[] selectionArgs = {entity.toString()};
-        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, columns, "cid=?", selectionArgs, null, null, null)) {
-            List<InstantMessage> messages = new ArrayList<>();
-            String sender;
-            String receiver;
-            long time;
-            String content;
-            int sn;
-            String signature;
-            InstantMessage iMsg;
-            List<String> array;
+        List<MessageRow> rows = new ArrayList<>();
+        boolean hasMore = false;
+        int bytes = 0;
+        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, MessageRow.COLUMNS, selection, selectionArgs, null, null, orderBy)) {
+            MessageRow row;
             while (cursor.moveToNext()) {
-                sender = cursor.getString(0);
-                receiver = cursor.getString(1);
-                time = cursor.getLong(2);
-                content = cursor.getString(3);
-                sn = cursor.getInt(4);
-                signature = cursor.getString(5);
-                iMsg = MessageDatabase.getInstanceMessage(sender, receiver, time, content);
-                if (iMsg != null) {
-                    // signature
-                    if (signature != null && signature.length() > 0) {
-                        iMsg.put("signature", signature);
-                    }
-                    // traces
-                    array = getTraces(traces, sn, signature);
-                    if (array != null && array.size() > 0) {
-                        iMsg.put("traces", array);
-                    }
-                    messages.add(iMsg);
+                if (rows.size() >= limit) {
+                    hasMore = true;
+                    break;
                 }
+                // content will be decoded on first access
+                row = MessageRow.from(cursor);
+                row.setTraces(getTraces(traces, row.rowid));
+                cache.indexMessage(entity, row.rowid, row.sn, row.signature);
+                rows.add(row);
+                bytes += row.getSize();
+                time = row.time;
+                rowid = row.rowid;
             }
-            cachedMessages = messages;
-            cachedMessagesID = entity;
         } catch (SQLiteCantOpenDatabaseException e) {
             e.printStackTrace();
         }
-        return cachedMessages;
+        // sort by time, oldest first
+        Collections.reverse(rows);
+        MessagePage page = new MessagePage(new MessageRow.LazyList(rows), time, rowid, hasMore);
+        if (window != null) {
+            window.setPage(index, page, bytes, rows);
+            cache.trim();
+        }
+        return page;
+    }
+
+    // get messages of the page, load pages before it if not loaded yet
+    private List<InstantMessage> getMessages(MessageWindow window, int index) {
+        MessagePage page = window.getPage(index);
+        if (page != null && page.messages != null) {
+            return page.messages;
+        }
+        long time = 0;
+        long rowid = 0;
+        for (int i = 0; i <= index; ++i) {
+            page = window.getPage(i);
+            if (page == null || (i == index && page.messages == null)) {
+                page = loadPage(window.conversation, time, rowid, MessageWindow.PAGE_SIZE, window, i);
+            }
+            if (i < index && !page.hasMore) {
+                // out of range
+                return null;
+            }
+            time = page.time;
+            rowid = page.rowid;
+        }
+        return page == null ? null : page.messages;
     }
 
     @Override
     public int numberOfMessages(ID entity) {
-        if (entity.equals(cachedMessagesID) &&  cachedMessages != null) {
-            return cachedMessages.size();
+        // archived messages are paged back by index too
+        return countMessages(entity) + countArchived(entity);
+    }
+
+    // count of messages in 't_message'
+    private int countMessages(ID entity) {
+        MessageWindow window = cache.peekWindow(entity);
+        if (window != null && window.total >= 0) {
+            return window.total;
         }
+        awaitWrites(entity);
         int count = 0;
         String[] columns = {"COUNT(*)"};
         String[] selectionArgs = {entity.toString()};
@@ -312,60 +515,78 @@ public final class MessageTable extends DataTable implements chat.dim.database.M
         } catch (SQLiteCantOpenDatabaseException e) {
             e.printStackTrace();
         }
+        if (window != null) {
+            window.total = count;
+        }
+        return count;
+    }
+
+    // count of messages moved into archive
+    private int countArchived(ID entity) {
+        MessageWindow window = cache.peekWindow(entity);
+        if (window != null && window.archived >= 0) {
+            return window.archived;
+        }
+        awaitWrites(entity);
+        int count = archiveTable.numberOfMessages(entity);
+        if (window != null) {
+            window.archived = count;
+        }
         return count;
     }
 
     @Override
     public int numberOfUnreadMessages(ID entity) {
-        String[] columns = {"COUNT(*)"};
-        String[] selectionArgs = {entity.toString()};
-        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, columns, "cid=? AND read!=1", selectionArgs, null, null, null)) {
-            if (cursor.moveToNext()) {
-                return cursor.getInt(0);
-            }
-            return 0;
-        }
+        return conversationTable.numberOfUnreadMessages(entity);
     }
 
     @Override
-    public boolean clearUnreadMessages(ID entity) {
-        ContentValues values = new ContentValues();
-        values.put("read", 1);
-        String[] whereArgs = {entity.toString()};
-        return update(MessageDatabase.T_MESSAGE, values, "cid=? AND read != 1", whereArgs) > 0;
+    public Map<ID, Integer> unreadCounts() {
+        return conversationTable.unreadCounts();
+    }
+
+    @Override
+    public boolean clearUnreadMessages(final ID entity) {
+        if (conversationTable.numberOfUnreadMessages(entity) == 0) {
+            return false;
+        }
+        // cleared in memory at once
+        conversationTable.setUnreadCount(entity, 0);
+        // write behind, the UI thread won't wait for it
+        submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                ContentValues values = new ContentValues();
+                values.put("read", 1);
+                String[] whereArgs = {entity.toString()};
+                // 'read<1' equals to 'read!=1' for 0/1/NULL, but can be searched with 'msg_read_index'
+                boolean ok = update(MessageDatabase.T_MESSAGE, values, "cid=? AND read<1", whereArgs) > 0;
+                conversationTable.clearUnread(entity);
+                return ok;
+            }
+        });
+        return true;
     }
 
     @Override
     public InstantMessage lastMessage(ID entity) {
-        if (entity.equals(cachedMessagesID) && cachedMessages != null) {
-            int count = cachedMessages.size();
-            if (count > 0) {
-                return cachedMessages.get(count - 1);
+        MessageWindow window = cache.peekWindow(entity);
+        if (window != null) {
+            MessagePage page = window.getPage(0);
+            if (page != null && page.messages != null) {
+                int count = page.messages.size();
+                if (count > 0) {
+                    return page.messages.get(count - 1);
+                }
+                return null;
             }
-            return null;
         }
+        awaitWrites(entity);
         InstantMessage iMsg = null;
-        String[] columns = {"sender", "receiver", "time", "content", "signature"};
         String[] selectionArgs = {entity.toString()};
-        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, columns, "cid=?", selectionArgs, null, null, "time DESC LIMIT 1")) {
-            String sender;
-            String receiver;
-            long time;
-            String content;
-            String signature;
+        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, MessageRow.COLUMNS, "cid=?", selectionArgs, null, null, "time DESC, rowid DESC LIMIT 1")) {
             if (cursor.moveToNext()) {
-                sender = cursor.getString(0);
-                receiver = cursor.getString(1);
-                time = cursor.getLong(2);
-                content = cursor.getString(3);
-                signature = cursor.getString(4);
-                iMsg = MessageDatabase.getInstanceMessage(sender, receiver, time, content);
-                if (iMsg != null) {
-                    // signature
-                    if (signature != null && signature.length() > 0) {
-                        iMsg.put("signature", signature);
-                    }
-                }
+                iMsg = MessageRow.from(cursor).getMessage();
             }
         } catch (SQLiteCantOpenDatabaseException e) {
             e.printStackTrace();
@@ -374,45 +595,207 @@ public final class MessageTable extends DataTable implements chat.dim.database.M
     }
 
     @Override
-    public InstantMessage lastReceivedMessage(ID user) {
-        String[] columns = {"sender", "receiver", "time", "content", "signature"};
-        String[] selectionArgs = {user.toString()};
-        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, columns, "sender!=?", selectionArgs, null, null, "time DESC LIMIT 1")) {
-            String sender;
-            String receiver;
-            long time;
-            String content;
-            String signature;
-            InstantMessage iMsg;
+    public InstantMessage lastVisibleMessage(ID entity) {
+        InstantMessage iMsg = cache.getLastVisibleMessage(entity);
+        if (iMsg != null) {
+            return iMsg;
+        }
+        long version = cache.getVersion(entity);
+        awaitWrites(entity);
+        long rowid = conversationTable.lastVisibleMessage(entity);
+        if (rowid <= 0) {
+            return null;
+        }
+        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, MessageRow.COLUMNS, "rowid=" + rowid, null, null, null, null)) {
             if (cursor.moveToNext()) {
-                sender = cursor.getString(0);
-                receiver = cursor.getString(1);
-                time = cursor.getLong(2);
-                content = cursor.getString(3);
-                signature = cursor.getString(4);
-                iMsg = MessageDatabase.getInstanceMessage(sender, receiver, time, content);
+                MessageRow row = MessageRow.from(cursor);
+                row.setTraces(getTraces(tracesInConversation(entity), rowid));
+                cache.indexMessage(entity, rowid, row.sn, row.signature);
+                int size = row.getSize();
+                iMsg = row.getMessage();
                 if (iMsg != null) {
-                    // signature
-                    if (signature != null && signature.length() > 0) {
-                        iMsg.put("signature", signature);
-                    }
-                    return iMsg;
+                    cache.setLastVisibleMessage(entity, iMsg, size, version);
                 }
             }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+        }
+        return iMsg;
+    }
+
+    @Override
+    public InstantMessage lastReceivedMessage(ID user) {
+        long mid = latestTable.lastReceived(user.toString());
+        if (mid <= 0) {
             return null;
         }
+        MessageRow row = lastReceived;
+        if (row == null || row.rowid != mid) {
+            row = null;
+            try (Cursor cursor = query(MessageDatabase.T_MESSAGE, MessageRow.COLUMNS, "rowid=" + mid, null, null, null, null)) {
+                if (cursor.moveToNext()) {
+                    row = MessageRow.from(cursor);
+                }
+            } catch (SQLiteCantOpenDatabaseException e) {
+                e.printStackTrace();
+            }
+            if (row == null) {
+                return null;
+            }
+            lastReceived = row;
+        }
+        return row.getMessage();
     }
 
     @Override
     public InstantMessage messageAtIndex(int index, ID entity) {
-        List<InstantMessage> messages = messagesInConversation(entity);
-        if (messages == null || messages.size() <= index) {
+        int count = numberOfMessages(entity);
+        if (index < 0 || index >= count) {
+            return null;
+        }
+        // index from the latest message
+        int reverse = count - 1 - index;
+        int hot = countMessages(entity);
+        if (reverse >= hot) {
+            // older than all messages in 't_message'
+            return archiveTable.messageAt(reverse - hot, entity);
+        }
+        MessageWindow window = cache.getWindow(entity);
+        window.total = hot;
+        List<InstantMessage> messages = getMessages(window, reverse / MessageWindow.PAGE_SIZE);
+        if (messages == null) {
             return null;
         }
-        return messages.get(index);
+        int pos = messages.size() - 1 - reverse % MessageWindow.PAGE_SIZE;
+        if (pos < 0) {
+            return null;
+        }
+        return messages.get(pos);
+    }
+
+    @Override
+    public MessagePage messagesBefore(long time, long rowid, int limit, ID entity) {
+        MessagePage page = null;
+        if (limit == MessageWindow.PAGE_SIZE) {
+            // try from the window
+            MessageWindow window = cache.getWindow(entity);
+            int index = window.indexOf(time, rowid);
+            if (index >= 0) {
+                page = window.getPage(index);
+                if (page == null || page.messages == null) {
+                    page = loadPage(entity, time, rowid, limit, window, index);
+                }
+            }
+        }
+        if (page == null) {
+            page = loadPage(entity, time, rowid, limit, null, 0);
+        }
+        if (page.hasMore || page.messages.size() >= limit) {
+            return page;
+        }
+        // older messages may be moved into archive
+        return archiveTable.fillPage(page, limit, entity);
+    }
+
+    @Override
+    public MessagePage searchMessages(String keywords, ID entity, long before, int limit) {
+        String match = SearchTable.buildQuery(keywords);
+        if (match == null) {
+            return new MessagePage(new ArrayList<InstantMessage>(), 0, 0, false);
+        }
+        // query one more row to check whether more results exist
+        List<Long> rowids = searchTable.search(match, entity, before, limit + 1);
+        boolean hasMore = rowids.size() > limit;
+        if (hasMore) {
+            rowids = rowids.subList(0, limit);
+        }
+        Map<Long, MessageRow> results = new HashMap<>();
+        if (rowids.size() > 0) {
+            StringBuilder sb = new StringBuilder();
+            for (Long item : rowids) {
+                if (sb.length() > 0) {
+                    sb.append(",");
+                }
+                sb.append(item);
+            }
+            String selection = "rowid IN (" + sb + ")";
+            try (Cursor cursor = query(MessageDatabase.T_MESSAGE, MessageRow.COLUMNS, selection, null, null, null, null)) {
+                MessageRow row;
+                while (cursor.moveToNext()) {
+                    row = MessageRow.from(cursor);
+                    results.put(row.rowid, row);
+                }
+            } catch (SQLiteCantOpenDatabaseException e) {
+                e.printStackTrace();
+            }
+        }
+        // the others were moved into archive
+        List<Long> missed = new ArrayList<>();
+        for (Long item : rowids) {
+            if (!results.containsKey(item)) {
+                missed.add(item);
+            }
+        }
+        Map<Long, InstantMessage> archived = missed.size() == 0
+                ? new HashMap<Long, InstantMessage>() : archiveTable.findMessages(missed);
+        long last = rowids.size() > 0 ? rowids.get(rowids.size() - 1) : 0;
+        // keep the order of search results, latest first
+        MessageRow row;
+        if (archived.size() == 0) {
+            List<MessageRow> rows = new ArrayList<>();
+            for (Long item : rowids) {
+                row = results.get(item);
+                if (row != null) {
+                    rows.add(row);
+                }
+            }
+            return new MessagePage(new MessageRow.LazyList(rows), 0, last, hasMore);
+        }
+        List<InstantMessage> messages = new ArrayList<>();
+        InstantMessage iMsg;
+        for (Long item : rowids) {
+            row = results.get(item);
+            iMsg = row == null ? archived.get(item) : row.getMessage();
+            if (iMsg != null) {
+                messages.add(iMsg);
+            }
+        }
+        return new MessagePage(messages, 0, last, hasMore);
+    }
+
+    /**
+     *  Get rowid of the message, from the index in memory or with SQL
+     *
+     * @param entity    - conversation ID
+     * @param sender    - sender of the message, null for unknown
+     * @param sn        - serial number of message content
+     * @param signature - first 8 chars of message signature
+     * @return 0 on not found
+     */
+    private long findMessage(ID entity, ID sender, long sn, String signature) {
+        long mid = cache.findMessage(entity, sn, signature);
+        if (mid > 0) {
+            return mid;
+        }
+        try {
+            if (sn > 0 && sender != null) {
+                // with unique index (cid, sender, sn)
+                mid = queryForLong(SQL_FIND_BY_SN, 0, entity.toString(), sender.toString(), sn);
+            } else {
+                mid = queryForLong(SQL_FIND_BY_SN_OR_SIG, 0, entity.toString(),
+                        (sn > 0 ? sn : 9527), (signature.length() > 0 ? signature : "MOKY"));
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+            return 0;
+        }
+        if (mid > 0) {
+            indexMessage(entity, mid, sn, signature);
+        }
+        return mid;
     }
 
-    private boolean insertTrace(ID cid, long sn, String signature, Object trace) {
+    private boolean insertTrace(ID cid, long mid, long sn, String signature, Object trace) {
         String tid;
         if (trace instanceof Map) {
             tid = (String) ((Map<?, ?>) trace).get("did");
@@ -426,33 +809,80 @@ public final class MessageTable extends DataTable implements chat.dim.database.M
             // TODO: JsON string?
             tid = (String) trace;
         }
-        String[] columns = {"signature"};
-        String[] selectionArgs = {cid.toString(), ""+sn, tid};
-        try (Cursor cursor = query(MessageDatabase.T_TRACE, columns, "cid=? AND sn=? AND trace=?", selectionArgs, null, null, null)) {
-            if (cursor.moveToNext()) {
-                // record exists
-                Log.info("drop duplicated trace: " + cid + "(" + sn + ") " + trace);
-                return false;
-            }
-        } catch (SQLiteCantOpenDatabaseException e) {
-            e.printStackTrace();
+        // dropped by unique index (cid, sn, trace) if exists
+        if (executeInsert(SQL_INSERT_TRACE, cid.toString(), sn, signature, tid, (mid > 0 ? mid : null)) < 0) {
+            Log.info("drop duplicated trace: " + cid + "(" + sn + ") " + trace);
             return false;
         }
-        ContentValues values = new ContentValues();
-        values.put("cid", cid.toString());
-        values.put("sn", sn);
-        values.put("signature", signature);
-        values.put("trace", tid);
-        if (insert(MessageDatabase.T_TRACE, null, values) < 0) {
-            return false;
+        // update traces cache, messages cache won't be affected
+        if (mid > 0) {
+            addTrace(cid, mid, tid);
         }
-        // clear for reload
-        clearCaches(cid);
         return true;
     }
 
+    // link traces received before the message
+    private void linkTraces(final ID entity, long mid, long sn, String signature) {
+        String whereClause;
+        String[] whereArgs;
+        if (sn > 0) {
+            // with unique index (cid, sn, trace)
+            whereClause = "cid=? AND sn=? AND mid IS NULL";
+            whereArgs = new String[]{entity.toString(), "" + sn};
+        } else if (signature.length() > 0) {
+            whereClause = "cid=? AND signature=? AND mid IS NULL";
+            whereArgs = new String[]{entity.toString(), signature};
+        } else {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put("mid", mid);
+        if (update(MessageDatabase.T_TRACE, values, whereClause, whereArgs) > 0) {
+            // reload
+            afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    cache.removeTraces(entity);
+                }
+            });
+        }
+    }
+
     @Override
     public boolean insertMessage(InstantMessage iMsg, ID entity) {
+        Future<Integer> future = insertMessages(Collections.singletonList(iMsg), entity);
+        try {
+            return future.get() > 0;
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public Future<Integer> insertMessages(final List<InstantMessage> messages, final ID entity) {
+        // coalesced with other pending writes into one transaction,
+        // messages of this conversation read from database will wait for it
+        return submit(entity, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int count = 0;
+                for (InstantMessage item : messages) {
+                    if (saveMessage(item, entity)) {
+                        ++count;
+                    }
+                }
+                if (count > 0) {
+                    // clear for reload
+                    clearCaches(entity);
+                }
+                return count;
+            }
+        });
+    }
+
+    // insert message & update conversation, call it on the writer thread
+    private boolean saveMessage(InstantMessage iMsg, ID entity) {
         Content content = iMsg.getContent();
         if (content == null) {
             return false;
@@ -470,70 +900,92 @@ public final class MessageTable extends DataTable implements chat.dim.database.M
             signature = signature.substring(0, 8);
         }
 
+        // content
+        int format;
+        String json = null;
+        byte[] data = null;
+        if (MessageDatabase.binaryContent) {
+            format = ContentCoder.FORMAT_BINARY;
+            data = ContentCoder.encode(content.toMap());
+        } else {
+            format = ContentCoder.FORMAT_JSON;
+            json = JSON.encode(content);
+        }
+        Object read = iMsg.get("read");
+        // dropped by unique index (cid, sender, sn) if exists
+        long rowid;
+        long archived = maxArchivedRowid();
+        if (archived > 0 && queryForLong(SQL_MAX_ROWID, 0) < archived) {
+            // SQLite would reuse a rowid which was archived (no AUTOINCREMENT)
+            rowid = executeInsert(SQL_INSERT_MESSAGE_AT, archived + 1, cid,
+                    sender, receiver, time.getTime() / 1000,
+                    format, json, data, type, sn,
+                    (signature.length() > 0 ? signature : null), (read == null ? 0 : 1));
+        } else {
+            rowid = executeInsert(SQL_INSERT_MESSAGE, cid,
+                    sender, receiver, time.getTime() / 1000,
+                    format, json, data, type, sn,
+                    (signature.length() > 0 ? signature : null), (read == null ? 0 : 1));
+        }
+        boolean duplicated = rowid < 0;
+        if (duplicated) {
+            Log.info("drop duplicated msg: " + iMsg.getSender() + " -> " + iMsg.getReceiver());
+            rowid = findMessage(entity, iMsg.getSender(), sn, signature);
+        } else {
+            indexMessage(entity, rowid, sn, signature);
+            linkTraces(entity, rowid, sn, signature);
+            searchTable.didInsertMessage(rowid, content);
+            latestTable.didInsertMessage(rowid, time.getTime() / 1000, sender);
+        }
+
         // check traces
         List traces = (List) iMsg.get("traces");
         if (traces != null && traces.size() > 0) {
             for (Object item : traces) {
-                insertTrace(entity, sn, signature, item);
+                insertTrace(entity, rowid, sn, signature, item);
             }
         }
 
-        // check for duplicated
-        String[] columns = {"time"};
-        String[] selectionArgs = {cid, sender, ""+sn};
-        try (Cursor cursor = query(MessageDatabase.T_MESSAGE, columns, "cid=? AND sender=? AND sn=?", selectionArgs, null, null, null)) {
-            if (cursor.moveToNext()) {
-                // record exists
-                Log.info("drop duplicated msg: " + iMsg.getSender() + " -> " + iMsg.getReceiver());
-                return false;
-            }
-        } catch (SQLiteCantOpenDatabaseException e) {
-            e.printStackTrace();
+        if (duplicated) {
             return false;
         }
+        return conversationTable.didInsertMessage(entity, rowid, time.getTime() / 1000, content.getType(), read != null);
+    }
 
-        ContentValues values = new ContentValues();
-        values.put("cid", cid);
-        // envelope
-        values.put("sender", sender);
-        values.put("receiver", receiver);
-        values.put("time", time.getTime() / 1000);
-        // content
-        String text = JSON.encode(content);
-        values.put("content", text);
-        values.put("type", type);
-        values.put("sn", sn);
-        // extra
-        if (signature.length() > 0) {
-            values.put("signature", signature);
-        }
-        Object read = iMsg.get("read");
-        if (read == null) {
-            values.put("read", 0);
-        } else {
-            values.put("read", 1);
-        }
-        if (insert(MessageDatabase.T_MESSAGE, null, values) < 0) {
-            return false;
-        }
-        // clear for reload
-        clearCaches(entity);
+    @Override
+    public boolean removeMessage(final InstantMessage iMsg, final ID entity) {
+        // drop messages loaded at once, reloading will wait for this write
+        cache.removeMessages(entity);
+        submit(entity, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return deleteMessage(iMsg, entity);
+            }
+        });
         return true;
     }
 
-    @Override
-    public boolean removeMessage(InstantMessage iMsg, ID entity) {
-        Object sender = iMsg.getSender();
+    // call it on the writer thread
+    private boolean deleteMessage(InstantMessage iMsg, ID entity) {
         long sn = iMsg.getContent().getSerialNumber();
         String signature = (String) iMsg.get("signature");
         if (signature == null) {
             signature = "";
+        } else if (signature.length() > 8) {
+            signature = signature.substring(0, 8);
+        }
+        long rowid = findMessage(entity, iMsg.getSender(), sn, signature);
+        if (rowid <= 0) {
+            return false;
         }
-        String[] whereArgs = {entity.toString(), sender.toString(), (sn > 0 ? ""+sn : "9527"), (signature.length() > 0 ? signature : "MOKY")};
-        delete(MessageDatabase.T_TRACE, "cid=? AND sender=? AND (sn=? OR signature=?)", whereArgs);
-        if (delete(MessageDatabase.T_MESSAGE, "cid=? AND sender=? AND (sn=? OR signature=?)", whereArgs) <= 0) {
+        delete(MessageDatabase.T_TRACE, "mid=" + rowid, null);
+        if (delete(MessageDatabase.T_MESSAGE, "rowid=" + rowid, null) <= 0) {
             return false;
         }
+        searchTable.didRemoveMessage(rowid);
+        latestTable.didRemoveMessage(rowid);
+        conversationTable.refresh(entity);
+        uncacheMessage(entity, rowid, sn, signature);
         // clear for reload
         clearCaches(entity);
         return true;
@@ -544,10 +996,19 @@ public final class MessageTable extends DataTable implements chat.dim.database.M
         return false;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
-    public boolean saveReceipt(InstantMessage iMsg, ID entity) {
-        // save receipt of instant message
+    public Future<Boolean> saveReceipt(final InstantMessage iMsg, final ID entity) {
+        return submit(entity, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return storeReceipt(iMsg, entity);
+            }
+        });
+    }
+
+    // save receipt of instant message, call it on the writer thread
+    @SuppressWarnings("unchecked")
+    private boolean storeReceipt(InstantMessage iMsg, ID entity) {
         Object content = iMsg.getContent();
         if (!(content instanceof ReceiptCommand)) {
             return false;
@@ -575,61 +1036,30 @@ public final class MessageTable extends DataTable implements chat.dim.database.M
             signature = signature.substring(0, 8);
         }
 
-        if (!insertTrace(entity, sn, signature, sender)) {
+        // original sender, for searching with unique index (cid, sender, sn)
+        ID origin = ID.parse(receipt.get("sender"));
+        final long mid = findMessage(entity, origin, sn, signature);
+        if (!insertTrace(entity, mid, sn, signature, sender)) {
             return false;
         }
 
         // update message already loaded into memory cache
-        if (entity.equals(cachedMessagesID) && cachedMessages != null) {
-            InstantMessage item;
-            int index = cachedMessages.size() - 1;
-            for (; index >= 0; --index) {
-                item = cachedMessages.get(index);
-                if (!isMatch(item, receipt)) {
-                    continue;
-                }
-                List<String> traces = (List) item.get("traces");
-                if (traces == null) {
-                    traces = new ArrayList<>();
-                    item.put("traces", traces);
+        if (mid > 0) {
+            final ID cid = entity;
+            final String trace = sender.toString();
+            afterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    MessageWindow window = cache.peekWindow(cid);
+                    MessageRow row = window == null ? null : window.getRow(mid);
+                    if (row != null) {
+                        // DISCUSS: what about the other fields 'sender', 'receiver', 'signature'
+                        //          in this receipt command?
+                        row.addTrace(trace);
+                    }
                 }
-                // DISCUSS: what about the other fields 'sender', 'receiver', 'signature'
-                //          in this receipt command?
-                traces.add(sender.toString());
-                break;
-            }
+            });
         }
         return true;
     }
-
-    private static boolean isMatch(InstantMessage iMsg, ReceiptCommand receipt) {
-
-        // 1. check sender & receiver
-        Object sender = receipt.get("sender");
-        if (sender != null && !iMsg.getSender().equals(sender)) {
-            return false;
-        }
-        Object receiver = receipt.get("receiver");
-        if (receiver != null && !iMsg.getReceiver().equals(receiver)) {
-            return false;
-        }
-        // 2. check signature
-        String sig1 = (String) receipt.get("signature");
-        String sig2 = (String) iMsg.get("signature");
-        if (sig1 != null && sig2 != null) {
-            sig1 = sig1.replaceAll("\n", "");
-            sig2 = sig2.replaceAll("\n", "");
-            int len1 = sig1.length();
-            int len2 = sig2.length();
-            if (len1 > len2) {
-                return sig1.contains(sig2);
-            } else if (len1 < len2) {
-                return sig2.contains(sig1);
-            } else {
-                return sig1.equals(sig2);
-            }
-        }
-        // 3. check sn
-        return iMsg.getContent().getSerialNumber() == receipt.getSerialNumber();
-    }
 }
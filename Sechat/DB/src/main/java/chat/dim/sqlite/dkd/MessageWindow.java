@@ -0,0 +1,242 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.sqlite.dkd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chat.dim.database.MessageTable.MessagePage;
+import chat.dim.protocol.ID;
+
+/**
+ *  Messages of one conversation, loaded page by page
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Page 0 is the latest page, each page keeps the (time, rowid) of its oldest message,
+ *  which is the keyset for loading the next (older) page.
+ *  Only MAX_PAGES pages are kept in memory, the others keep their keysets only;
+ *  messages in a page are decoded on first access (see MessageRow).
+ *
+ *  The loaded pages are kept in an immutable snapshot, which is replaced as a whole
+ *  when a page is loaded, so readers never block and never see a half-updated window.
+ */
+final class MessageWindow {
+
+    // messages count in one page
+    static final int PAGE_SIZE = 32;
+    // max loaded pages in memory
+    static final int MAX_PAGES = 4;
+
+    final ID conversation;
+
+    // total messages count, -1 means unknown
+    volatile int total = -1;
+    // archived messages count, -1 means unknown
+    volatile int archived = -1;
+
+    private volatile Snapshot snapshot = new Snapshot(
+            Collections.<MessagePage>emptyList(), Collections.<Integer>emptyList(),
+            Collections.<List<MessageRow>>emptyList(), Collections.<Long, MessageRow>emptyMap());
+
+    // last access of loaded pages, for evicting
+    private final Map<Integer, Long> accessed = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong(0);
+
+    MessageWindow(ID conversation) {
+        super();
+        this.conversation = conversation;
+    }
+
+    /**
+     *  Immutable state of the window
+     */
+    private static final class Snapshot {
+
+        // latest first
+        final List<MessagePage> pages;
+        // estimated bytes of loaded pages
+        final List<Integer> sizes;
+        // rows of messages in loaded pages
+        final List<List<MessageRow>> rows;
+        // message rows by rowid
+        final Map<Long, MessageRow> messages;
+
+        Snapshot(List<MessagePage> pages, List<Integer> sizes,
+                 List<List<MessageRow>> rows, Map<Long, MessageRow> messages) {
+            super();
+            this.pages = pages;
+            this.sizes = sizes;
+            this.rows = rows;
+            this.messages = messages;
+        }
+    }
+
+    /**
+     *  Get page at index
+     *
+     * @param index - page index, 0 is the latest
+     * @return null on not loaded; page with null messages on evicted
+     */
+    MessagePage getPage(int index) {
+        List<MessagePage> pages = snapshot.pages;
+        if (index < 0 || index >= pages.size()) {
+            return null;
+        }
+        MessagePage page = pages.get(index);
+        if (page.messages != null) {
+            accessed.put(index, clock.incrementAndGet());
+        }
+        return page;
+    }
+
+    /**
+     *  Set page at index, the loaders of one window are serialized,
+     *  while the readers keep using the previous snapshot
+     *
+     * @param index - page index, 0 is the latest
+     * @param page  - loaded page
+     * @param size  - estimated bytes of the message rows
+     * @param array - message rows of the page, oldest first
+     */
+    synchronized void setPage(int index, MessagePage page, int size, List<MessageRow> array) {
+        Snapshot old = snapshot;
+        List<MessagePage> pages = new ArrayList<>(old.pages);
+        List<Integer> sizes = new ArrayList<>(old.sizes);
+        List<List<MessageRow>> rows = new ArrayList<>(old.rows);
+        Map<Long, MessageRow> messages = new HashMap<>(old.messages);
+        if (index == pages.size()) {
+            pages.add(page);
+            sizes.add(size);
+            rows.add(Collections.unmodifiableList(array));
+        } else if (index < pages.size()) {
+            forget(rows, messages, index);
+            pages.set(index, page);
+            sizes.set(index, size);
+            rows.set(index, Collections.unmodifiableList(array));
+        } else {
+            throw new IndexOutOfBoundsException("page index error: " + index + ", " + pages.size());
+        }
+        for (MessageRow item : array) {
+            messages.put(item.rowid, item);
+        }
+        accessed.put(index, clock.incrementAndGet());
+        // evict least recently used pages
+        MessagePage loaded;
+        int lru;
+        while ((lru = leastRecentlyUsed(pages)) >= 0) {
+            accessed.remove(lru);
+            loaded = pages.get(lru);
+            pages.set(lru, new MessagePage(null, loaded.time, loaded.rowid, loaded.hasMore));
+            sizes.set(lru, 0);
+            forget(rows, messages, lru);
+        }
+        snapshot = new Snapshot(Collections.unmodifiableList(pages),
+                Collections.unmodifiableList(sizes), Collections.unmodifiableList(rows),
+                Collections.unmodifiableMap(messages));
+    }
+
+    // index of the page to be evicted, -1 when no more than MAX_PAGES pages loaded
+    private int leastRecentlyUsed(List<MessagePage> pages) {
+        int count = 0;
+        int lru = -1;
+        long oldest = Long.MAX_VALUE;
+        for (Map.Entry<Integer, Long> entry : accessed.entrySet()) {
+            int index = entry.getKey();
+            if (index >= pages.size() || pages.get(index).messages == null) {
+                // touched by a reader after evicted
+                accessed.remove(index);
+                continue;
+            }
+            ++count;
+            if (entry.getValue() < oldest) {
+                oldest = entry.getValue();
+                lru = index;
+            }
+        }
+        return count > MAX_PAGES ? lru : -1;
+    }
+
+    private static void forget(List<List<MessageRow>> rows, Map<Long, MessageRow> messages, int index) {
+        List<MessageRow> array = rows.get(index);
+        if (array == null) {
+            return;
+        }
+        for (MessageRow item : array) {
+            messages.remove(item.rowid);
+        }
+        rows.set(index, null);
+    }
+
+    /**
+     *  Get estimated bytes of all loaded pages
+     *
+     * @return bytes
+     */
+    int getSize() {
+        int size = 0;
+        for (Integer item : snapshot.sizes) {
+            size += item;
+        }
+        return size;
+    }
+
+    /**
+     *  Get index of the page which follows the keyset (time, rowid)
+     *
+     * @param time  - time of the oldest message in previous page, 0 for the latest page
+     * @param rowid - row ID of the oldest message in previous page
+     * @return -1 on not found
+     */
+    int indexOf(long time, long rowid) {
+        if (time <= 0) {
+            return 0;
+        }
+        List<MessagePage> pages = snapshot.pages;
+        MessagePage page;
+        for (int index = 0; index < pages.size(); ++index) {
+            page = pages.get(index);
+            if (page.time == time && page.rowid == rowid) {
+                return page.hasMore ? index + 1 : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *  Get loaded message row with rowid
+     *
+     * @param mid - message rowid
+     * @return null on not loaded
+     */
+    MessageRow getRow(long mid) {
+        return snapshot.messages.get(mid);
+    }
+}
@@ -0,0 +1,255 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.sqlite.dkd;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCantOpenDatabaseException;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import chat.dim.log.Log;
+import chat.dim.protocol.Content;
+import chat.dim.protocol.ContentType;
+import chat.dim.protocol.FileContent;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.InstantMessage;
+import chat.dim.protocol.TextContent;
+import chat.dim.sqlite.DataTable;
+import chat.dim.sqlite.Database;
+import chat.dim.type.Converter;
+
+/**
+ *  Full-text index of messages
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  FTS4 table with docid equals to the rowid in 't_message',
+ *  only text of TextContent and filename of FileContent are indexed.
+ *  Entries of archived messages are kept, 't_archived' maps their docids to segments.
+ *
+ *  The 'simple' tokenizer (the only one available since API 19) treats a run of CJK chars
+ *  as one token, so each CJK char is separated by space before indexing & matching.
+ */
+final class SearchTable extends DataTable {
+
+    SearchTable() {
+        super();
+    }
+
+    @Override
+    protected Database getDatabase() {
+        return MessageDatabase.getInstance();
+    }
+
+    // message types with text to be indexed
+    static final String INDEXED_TYPES = "(" +
+            Converter.getInteger(ContentType.TEXT, 0) + "," +
+            Converter.getInteger(ContentType.FILE, 0) + "," +
+            Converter.getInteger(ContentType.IMAGE, 0) + "," +
+            Converter.getInteger(ContentType.AUDIO, 0) + "," +
+            Converter.getInteger(ContentType.VIDEO, 0) + ")";
+
+    /**
+     *  Get text to be indexed
+     *
+     * @param content - message content
+     * @return null for content without text
+     */
+    static String getText(Content content) {
+        String text = null;
+        if (content instanceof TextContent) {
+            text = ((TextContent) content).getText();
+        } else if (content instanceof FileContent) {
+            text = ((FileContent) content).getFilename();
+        }
+        if (text == null || text.length() == 0) {
+            return null;
+        }
+        return tokenize(text);
+    }
+
+    private static boolean isCJK(char ch) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(ch);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                || block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES;
+    }
+
+    // separate CJK chars with spaces, replace other non-letters with spaces
+    private static String tokenize(String text) {
+        StringBuilder sb = new StringBuilder(text.length() * 2);
+        char ch;
+        for (int index = 0; index < text.length(); ++index) {
+            ch = text.charAt(index);
+            if (isCJK(ch)) {
+                sb.append(' ').append(ch).append(' ');
+            } else if (Character.isLetterOrDigit(ch)) {
+                sb.append(ch);
+            } else {
+                sb.append(' ');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     *  Build MATCH expression from keywords, each keyword must be matched
+     *
+     * @param keywords - words separated by spaces
+     * @return null on no word
+     */
+    static String buildQuery(String keywords) {
+        StringBuilder sb = new StringBuilder();
+        String[] words = keywords.trim().split("\\s+");
+        String tokens;
+        for (String item : words) {
+            tokens = tokenize(item).trim();
+            if (tokens.length() == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            if (tokens.contains(" ")) {
+                // phrase
+                sb.append('"').append(tokens.replaceAll("\\s+", " ")).append('"');
+            } else if (isCJK(tokens.charAt(0))) {
+                sb.append(tokens);
+            } else {
+                // prefix
+                sb.append(tokens).append('*');
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    //
+    //  Index
+    //
+
+    // call it within the transaction of inserting message
+    void didInsertMessage(long rowid, Content content) {
+        String text = getText(content);
+        if (text == null) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put("docid", rowid);
+        values.put("text", text);
+        insert(MessageDatabase.T_MESSAGE_FTS, null, values);
+    }
+
+    // call it within the transaction of removing message
+    void didRemoveMessage(long rowid) {
+        delete(MessageDatabase.T_MESSAGE_FTS, "docid=" + rowid, null);
+    }
+
+    // rowids of messages in the conversation, archived ones included
+    private static final String SQL_CONVERSATION_ROWIDS = "SELECT rowid FROM " + MessageDatabase.T_MESSAGE + " WHERE cid=?"
+            + " UNION ALL SELECT mid FROM " + MessageDatabase.T_ARCHIVED + " WHERE cid=?";
+
+    // call it before messages (and archives) of the conversation removed
+    void removeConversation(ID entity) {
+        String[] whereArgs = {entity.toString(), entity.toString()};
+        delete(MessageDatabase.T_MESSAGE_FTS, "docid IN (" + SQL_CONVERSATION_ROWIDS + ")", whereArgs);
+    }
+
+    /**
+     *  Index text of all messages, for upgrading
+     *
+     * @param db - database in upgrading
+     */
+    static void buildIndex(SQLiteDatabase db) {
+        String[] columns = {"rowid", "sender", "receiver", "time", "content"};
+        String selection = "type IN " + INDEXED_TYPES;
+        try (Cursor cursor = db.query(MessageDatabase.T_MESSAGE, columns, selection, null, null, null, null)) {
+            ContentValues values = new ContentValues();
+            InstantMessage iMsg;
+            String text;
+            while (cursor.moveToNext()) {
+                try {
+                    iMsg = MessageDatabase.getInstanceMessage(cursor.getString(1), cursor.getString(2), cursor.getLong(3), cursor.getString(4));
+                } catch (RuntimeException e) {
+                    // content error, skip it, or the upgrading will be aborted
+                    Log.error("failed to index message: " + cursor.getLong(0) + ", " + e);
+                    continue;
+                }
+                text = iMsg == null ? null : getText(iMsg.getContent());
+                if (text == null) {
+                    continue;
+                }
+                values.put("docid", cursor.getLong(0));
+                values.put("text", text);
+                db.insert(MessageDatabase.T_MESSAGE_FTS, null, values);
+            }
+        }
+    }
+
+    //
+    //  Search
+    //
+
+    /**
+     *  Search messages, latest first
+     *
+     * @param query  - MATCH expression
+     * @param entity - conversation ID, null for all
+     * @param before - rowid of the last message in previous page, 0 for the first page
+     * @param limit  - max rows
+     * @return rowids of messages in 't_message' or 't_archived'
+     */
+    List<Long> search(String query, ID entity, long before, int limit) {
+        String table = MessageDatabase.T_MESSAGE_FTS;
+        String selection = "text MATCH ?";
+        String[] selectionArgs;
+        if (entity == null) {
+            selectionArgs = new String[]{query};
+        } else {
+            selection += " AND docid IN (" + SQL_CONVERSATION_ROWIDS + ")";
+            selectionArgs = new String[]{query, entity.toString(), entity.toString()};
+        }
+        if (before > 0) {
+            selection += " AND docid<" + before;
+        }
+        String[] columns = {"docid"};
+        // no bm25() in FTS4, rank by recency
+        String orderBy = "docid DESC LIMIT " + limit;
+        List<Long> rowids = new ArrayList<>();
+        try (Cursor cursor = query(table, columns, selection, selectionArgs, null, null, orderBy)) {
+            while (cursor.moveToNext()) {
+                rowids.add(cursor.getLong(0));
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+        }
+        return rowids;
+    }
+}
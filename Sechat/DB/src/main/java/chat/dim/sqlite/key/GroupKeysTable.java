@@ -0,0 +1,217 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.sqlite.key;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import chat.dim.database.EntityCache;
+import chat.dim.format.JSON;
+import chat.dim.protocol.ID;
+import chat.dim.sqlite.DataTable;
+import chat.dim.sqlite.Database;
+
+/**
+ *  Encrypted keys of group messages
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  The message key of a sender in a group, encrypted for each member,
+ *  so a group message needn't encrypt the key for all members again.
+ *  Stored as JSON: {"digest": "...", member: base64, ...}
+ */
+public final class GroupKeysTable extends DataTable implements chat.dim.database.GroupKeysTable {
+
+    private GroupKeysTable() {
+        super();
+    }
+
+    private static GroupKeysTable ourInstance;
+    public static GroupKeysTable getInstance() {
+        if (ourInstance == null) {
+            ourInstance = new GroupKeysTable();
+        }
+        return ourInstance;
+    }
+
+    @Override
+    protected Database getDatabase() {
+        return KeyDatabase.getInstance();
+    }
+
+    private static final String SQL_SELECT_KEYS = "SELECT encrypted_keys FROM " + KeyDatabase.T_GROUP_KEYS
+            + " WHERE gid=? AND sender=? LIMIT 1";
+    // replaced by unique index (gid, sender)
+    private static final String SQL_REPLACE_KEYS = "INSERT OR REPLACE INTO " + KeyDatabase.T_GROUP_KEYS
+            + " (gid, sender, encrypted_keys) VALUES (?, ?, ?)";
+    private static final String SQL_DELETE_KEYS = "DELETE FROM " + KeyDatabase.T_GROUP_KEYS
+            + " WHERE gid=?";
+
+    /**
+     *  Cache key of the encrypted keys from a sender in a group
+     */
+    private static final class GroupSender {
+
+        final ID group;
+        final ID sender;
+        private final int hash;
+
+        GroupSender(ID group, ID sender) {
+            this.group = group;
+            this.sender = sender;
+            this.hash = group.hashCode() * 31 + sender.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof GroupSender)) {
+                return false;
+            }
+            GroupSender gs = (GroupSender) other;
+            return group.equals(gs.group) && sender.equals(gs.sender);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final int CACHE_SIZE = 1024;
+
+    // keys by (group, sender), unmodifiable
+    private final EntityCache<GroupSender, Map<String, Object>> keysCache = new EntityCache<>("group keys", CACHE_SIZE,
+            3600 * 1000, 5 * 60 * 1000);
+
+    // keys may be in the cache, evicted when keys of the group removed;
+    // pruned when it grows twice as big as the cache
+    private final Set<GroupSender> cachedKeys = Collections.newSetFromMap(new ConcurrentHashMap<GroupSender, Boolean>());
+    private final AtomicBoolean pruning = new AtomicBoolean(false);
+
+    private GroupSender getKey(ID group, ID sender) {
+        GroupSender key = new GroupSender(group, sender);
+        if (cachedKeys.add(key) && cachedKeys.size() > CACHE_SIZE * 2) {
+            prune();
+        }
+        return key;
+    }
+
+    private void prune() {
+        if (!pruning.compareAndSet(false, true)) {
+            // another thread is pruning
+            return;
+        }
+        try {
+            for (GroupSender key : cachedKeys) {
+                if (keysCache.contains(key)) {
+                    continue;
+                }
+                // expired or evicted; removing it again also drops a load still running for it,
+                // so it won't be cached after leaving this set
+                if (cachedKeys.remove(key)) {
+                    keysCache.remove(key);
+                }
+            }
+        } finally {
+            pruning.set(false);
+        }
+    }
+
+    private final EntityCache.Loader<GroupSender, Map<String, Object>> keysLoader = new EntityCache.Loader<GroupSender, Map<String, Object>>() {
+        @SuppressWarnings("unchecked")
+        @Override
+        public Map<String, Object> load(GroupSender key) {
+            awaitWrites(key);
+            String json = queryForString(SQL_SELECT_KEYS, key.group, key.sender);
+            Object info = json == null ? null : JSON.decode(json);
+            if (info instanceof Map) {
+                return Collections.unmodifiableMap((Map<String, Object>) info);
+            }
+            return null;
+        }
+    };
+
+    //
+    //  chat.dim.database.GroupKeysTable
+    //
+
+    @Override
+    public Map<String, Object> getGroupKeys(ID group, ID sender) {
+        Map<String, Object> keys = keysCache.get(getKey(group, sender), keysLoader);
+        // copy for the caller to modify
+        return keys == null ? null : new HashMap<>(keys);
+    }
+
+    @Override
+    public boolean saveGroupKeys(ID group, ID sender, Map<String, Object> keys) {
+        final GroupSender key = getKey(group, sender);
+        Map<String, Object> merged = new HashMap<>();
+        Map<String, Object> old = keysCache.get(key, keysLoader);
+        Object digest = keys.get("digest");
+        if (old != null && digest != null && digest.equals(old.get("digest"))) {
+            // same message key, append keys for new members
+            merged.putAll(old);
+        }
+        merged.putAll(keys);
+        keysCache.put(key, Collections.unmodifiableMap(merged));
+        // in case it was pruned before being put
+        cachedKeys.add(key);
+        final String json = JSON.encode(merged);
+        // write behind, readers of this key will wait for it
+        submit(key, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return executeInsert(SQL_REPLACE_KEYS, key.group, key.sender, json) >= 0;
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean removeGroupKeys(final ID group) {
+        boolean ok = write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return executeUpdateDelete(SQL_DELETE_KEYS, group.toString()) > 0;
+            }
+        }, false);
+        // keys of all senders in this group
+        for (GroupSender key : cachedKeys) {
+            if (key.group.equals(group)) {
+                cachedKeys.remove(key);
+                keysCache.remove(key);
+            }
+        }
+        return ok;
+    }
+}
@@ -46,11 +46,12 @@ public final class KeyDatabase extends Database {
     }
 
     private static final String DB_NAME = "key.db";
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 3;
 
     static final String T_PRIVATE_KEY = "t_private_key";
 
     static final String T_MESSAGE_KEY = "t_message_key";
+    static final String T_GROUP_KEYS = "t_group_keys";
 
     @Override
     public void onCreate(SQLiteDatabase db) {
@@ -59,11 +60,28 @@ public final class KeyDatabase extends Database {
 
         // msg (symmetric) key
         db.execSQL("CREATE TABLE " + T_MESSAGE_KEY + "(sender VARCHAR(64), receiver VARCHAR(64), pwd TEXT)");
-        db.execSQL("CREATE INDEX direction_index ON " + T_MESSAGE_KEY + "(sender, receiver)");
+        db.execSQL("CREATE UNIQUE INDEX msg_key_direction_index ON " + T_MESSAGE_KEY + "(sender, receiver)");
+
+        // encrypted keys of group messages
+        createGroupKeysTable(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            // keep the latest key of each direction before creating unique index
+            db.execSQL("DELETE FROM " + T_MESSAGE_KEY + " WHERE rowid NOT IN"
+                    + " (SELECT MAX(rowid) FROM " + T_MESSAGE_KEY + " GROUP BY sender, receiver)");
+            db.execSQL("DROP INDEX IF EXISTS direction_index");
+            db.execSQL("CREATE UNIQUE INDEX msg_key_direction_index ON " + T_MESSAGE_KEY + "(sender, receiver)");
+        }
+        if (oldVersion < 3) {
+            createGroupKeysTable(db);
+        }
+    }
 
+    private void createGroupKeysTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + T_GROUP_KEYS + "(gid VARCHAR(64), sender VARCHAR(64), encrypted_keys TEXT)");
+        db.execSQL("CREATE UNIQUE INDEX group_keys_index ON " + T_GROUP_KEYS + "(gid, sender)");
     }
 }
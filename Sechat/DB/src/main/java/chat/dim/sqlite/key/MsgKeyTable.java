@@ -25,10 +25,15 @@
  */
 package chat.dim.sqlite.key;
 
-import android.content.ContentValues;
-import android.database.Cursor;
+import android.database.SQLException;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import chat.dim.crypto.Direction;
 import chat.dim.crypto.SymmetricKey;
+import chat.dim.database.EntityCache;
 import chat.dim.format.JSON;
 import chat.dim.protocol.ID;
 import chat.dim.sqlite.DataTable;
@@ -53,37 +58,94 @@ public final class MsgKeyTable extends DataTable implements chat.dim.database.Ms
         return KeyDatabase.getInstance();
     }
 
+    private static final String SQL_SELECT_KEY = "SELECT pwd FROM " + KeyDatabase.T_MESSAGE_KEY
+            + " WHERE sender=? AND receiver=? LIMIT 1";
+    // replaced by unique index (sender, receiver)
+    private static final String SQL_REPLACE_KEY = "INSERT OR REPLACE INTO " + KeyDatabase.T_MESSAGE_KEY
+            + " (sender, receiver, pwd) VALUES (?, ?, ?)";
+
+    // parsed keys, so the stored JSON won't be parsed again on each miss of the key store
+    private final EntityCache<Direction, SymmetricKey> keyCache = new EntityCache<>("cipher keys", 4096,
+            3600 * 1000, 5 * 60 * 1000);
+
+    private final EntityCache.Loader<Direction, SymmetricKey> keyLoader = new EntityCache.Loader<Direction, SymmetricKey>() {
+        @Override
+        public SymmetricKey load(Direction direction) {
+            awaitWrites(direction);
+            // a key failed to save is still pending
+            String sk = pendingKeys.get(direction);
+            if (sk == null) {
+                sk = queryForString(SQL_SELECT_KEY, direction.sender, direction.receiver);
+            }
+            if (sk == null) {
+                return null;
+            }
+            Object info = JSON.decode(sk);  // Map<String, Object>
+            return SymmetricKey.parse(info);
+        }
+    };
+
+    // keys waiting for the writer, a direction refreshed again before written is saved only once;
+    // removed after committed, so a batch rolled back and run again can still find it
+    private final ConcurrentMap<Direction, String> pendingKeys = new ConcurrentHashMap<>();
+
     //
     //  chat.dim.database.PrivateKeyTable
     //
 
     @Override
     public SymmetricKey getCipherKey(ID sender, ID receiver, boolean generate) {
-        SymmetricKey key = null;
-        String[] columns = {"pwd"};
-        String[] selectionArgs = {sender.toString(), receiver.toString()};
-        try (Cursor cursor = query(KeyDatabase.T_MESSAGE_KEY, columns,"sender=? AND receiver=?", selectionArgs, null, null,null)) {
-            String sk;
-            Object info;  // Map<String, Object>
-            if (cursor.moveToNext()) {
-                sk = cursor.getString(0);
-                info = JSON.decode(sk);
-                key = SymmetricKey.parse(info);
-            }
-        }
-        return key;
+        return keyCache.get(new Direction(sender, receiver), keyLoader);
     }
 
     @Override
     public void cacheCipherKey(ID sender, ID receiver, SymmetricKey key) {
-        String[] whereArgs = {sender.toString(), receiver.toString()};
-        delete(KeyDatabase.T_MESSAGE_KEY, "sender=? AND receiver=?", whereArgs);
-
-        String text = JSON.encode(key);
-        ContentValues values = new ContentValues();
-        values.put("sender", sender.toString());
-        values.put("receiver", receiver.toString());
-        values.put("pwd", text);
-        insert(KeyDatabase.T_MESSAGE_KEY, null, values);
+        final Direction direction = new Direction(sender, receiver);
+        keyCache.put(direction, key);
+        if (pendingKeys.put(direction, JSON.encode(key)) != null && isWritePending(direction)) {
+            // coalesced into the pending write
+            return;
+        }
+        saveKey(direction, 0);
+    }
+
+    // times to save a key again after failed, then it's kept pending until refreshed
+    private static final int MAX_RETRIES = 3;
+
+    // write behind, readers of this direction will wait for it
+    private void saveKey(final Direction direction, final int retries) {
+        submit(direction, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                // the latest key of this direction
+                final String text = pendingKeys.get(direction);
+                if (text == null) {
+                    return false;
+                }
+                boolean ok;
+                try {
+                    ok = executeInsert(SQL_REPLACE_KEY, direction.sender, direction.receiver, text) >= 0;
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    ok = false;
+                }
+                final boolean saved = ok;
+                afterCommit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!saved) {
+                            // keep it pending, or it lives only in the key cache
+                            if (retries < MAX_RETRIES) {
+                                saveKey(direction, retries + 1);
+                            }
+                        } else if (!pendingKeys.remove(direction, text)) {
+                            // refreshed after read, save the new one
+                            saveKey(direction, 0);
+                        }
+                    }
+                });
+                return ok;
+            }
+        });
     }
 }
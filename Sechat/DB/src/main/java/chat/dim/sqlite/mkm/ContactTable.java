@@ -25,12 +25,15 @@
  */
 package chat.dim.sqlite.mkm;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteCantOpenDatabaseException;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import chat.dim.protocol.ID;
 import chat.dim.sqlite.DataTable;
@@ -78,39 +81,72 @@ public final class ContactTable extends DataTable implements chat.dim.database.C
         return contacts;
     }
 
+    private static final String SQL_INSERT_CONTACT = "INSERT OR IGNORE INTO " + EntityDatabase.T_CONTACT
+            + " (uid, contact) VALUES (?, ?)";
+    private static final String SQL_DELETE_CONTACT = "DELETE FROM " + EntityDatabase.T_CONTACT
+            + " WHERE uid=? AND contact=?";
+
     @Override
-    public boolean addContact(ID contact, ID user) {
-        ContentValues values = new ContentValues();
-        values.put("uid", user.toString());
-        values.put("contact", contact.toString());
-        return insert(EntityDatabase.T_CONTACT, null, values) >= 0;
+    public boolean addContact(final ID contact, final ID user) {
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return insertContact(contact.toString(), user.toString());
+            }
+        }, false);
+    }
+
+    // ignored by unique index (uid, contact) if exists
+    private boolean insertContact(String contact, String user) {
+        return executeInsert(SQL_INSERT_CONTACT, user, contact) >= 0;
     }
 
     @Override
-    public boolean removeContact(ID contact, ID user) {
-        String[] whereArgs = {user.toString(), contact.toString()};
-        return delete(EntityDatabase.T_CONTACT, "uid=? AND contact=?", whereArgs) > 0;
+    public boolean removeContact(final ID contact, final ID user) {
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return deleteContact(contact.toString(), user.toString());
+            }
+        }, false);
+    }
+
+    private boolean deleteContact(String contact, String user) {
+        return executeUpdateDelete(SQL_DELETE_CONTACT, user, contact) > 0;
     }
 
     @Override
-    public boolean saveContacts(List<ID> newContacts, ID user) {
+    public boolean saveContacts(final List<ID> newContacts, final ID user) {
+        // all changes committed in one transaction
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return updateContacts(newContacts, user);
+            }
+        }, false);
+    }
+
+    // call it on the writer thread
+    private boolean updateContacts(List<ID> newContacts, ID user) {
+        String uid = user.toString();
+        Set<ID> oldContacts = new HashSet<>(getContacts(user));
+        Set<ID> contacts = new LinkedHashSet<>(newContacts);
         int count = 0;
         // remove expelled contact(s)
-        List<ID> oldContacts = getContacts(user);
         for (ID item : oldContacts) {
-            if (newContacts.contains(item)) {
+            if (contacts.contains(item)) {
                 continue;
             }
-            if (removeContact(item, user)) {
+            if (deleteContact(item.toString(), uid)) {
                 ++count;
             }
         }
         // insert new contact(s)
-        for (ID item : newContacts) {
+        for (ID item : contacts) {
             if (oldContacts.contains(item)) {
                 continue;
             }
-            if (addContact(item, user)) {
+            if (insertContact(item.toString(), uid)) {
                 ++count;
             }
         }
@@ -30,10 +30,13 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteCantOpenDatabaseException;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
+import chat.dim.database.EntityCache;
 import chat.dim.format.Base64;
 import chat.dim.format.TransportableData;
 import chat.dim.log.Log;
@@ -62,8 +65,16 @@ public final class DocumentTable extends DataTable implements chat.dim.database.
         return EntityDatabase.getInstance();
     }
 
-    // memory caches
-    private final Map<String, List<Document>> docsTable = new HashMap<>();
+    // memory caches, an empty list for entity without documents
+    private final EntityCache<ID, List<Document>> docsCache = new EntityCache<>("documents", 4096,
+            3600 * 1000, 3600 * 1000);
+
+    private final EntityCache.Loader<ID, List<Document>> docsLoader = new EntityCache.Loader<ID, List<Document>>() {
+        @Override
+        public List<Document> load(ID entity) {
+            return loadDocuments(entity);
+        }
+    };
 
     //
     //  chat.dim.database.UserTable
@@ -71,38 +82,93 @@ public final class DocumentTable extends DataTable implements chat.dim.database.
 
     @Override
     public List<Document> getDocuments(ID entity) {
-        // 1. try from memory cache
-        List<Document> documents = docsTable.get(entity.toString());
-        if (documents == null) {
-            documents = new ArrayList<>();
-            String type;
-            String data;
-            byte[] signature;
-            Document doc;
-            // 2. try from database
-            String[] columns = {"type", "data", "signature"};
-            String[] selectionArgs = {entity.toString()};
-            try (Cursor cursor = query(EntityDatabase.T_DOCUMENT, columns, "did=?", selectionArgs, null, null, null)) {
-                while (cursor.moveToNext()) {
-                    type = cursor.getString(0);
-                    data = cursor.getString(1);
-                    signature = cursor.getBlob(2);
-                    doc = Document.create(type, entity, data, TransportableData.create(signature));
-                    assert doc != null : "failed to create document: " + type + ", " + entity;
-                    documents.add(doc);
-                }
-            } catch (SQLiteCantOpenDatabaseException e) {
-                e.printStackTrace();
-            }
+        return docsCache.get(entity, docsLoader);
+    }
 
-            // 3. store into memory cache
-            docsTable.put(entity.toString(), documents);
+    private List<Document> loadDocuments(ID entity) {
+        // evicted before written?
+        awaitWrites(entity);
+        List<Document> documents = new ArrayList<>();
+        String[] columns = {"type", "data", "signature"};
+        String[] selectionArgs = {entity.toString()};
+        try (Cursor cursor = query(EntityDatabase.T_DOCUMENT, columns, "did=?", selectionArgs, null, null, null)) {
+            while (cursor.moveToNext()) {
+                documents.add(createDocument(cursor, 0, entity));
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
         }
         return documents;
     }
 
+    // create document with columns "type", "data", "signature" from the offset
+    private static Document createDocument(Cursor cursor, int offset, ID entity) {
+        String type = cursor.getString(offset);
+        String data = cursor.getString(offset + 1);
+        byte[] signature = cursor.getBlob(offset + 2);
+        Document doc = Document.create(type, entity, data, TransportableData.create(signature));
+        assert doc != null : "failed to create document: " + type + ", " + entity;
+        return doc;
+    }
+
+    @Override
+    public void prefetchDocuments(Collection<ID> entities) {
+        // entities not cached yet, with their cache versions before loading
+        Map<String, ID> missed = new HashMap<>();
+        Map<ID, Long> versions = new HashMap<>();
+        for (ID item : entities) {
+            if (versions.containsKey(item) || docsCache.contains(item) || isWritePending(item)) {
+                continue;
+            }
+            missed.put(item.toString(), item);
+            versions.put(item, docsCache.getVersion(item));
+            if (missed.size() >= MAX_BIND_ARGS) {
+                prefetch(missed, versions);
+                missed.clear();
+            }
+        }
+        if (missed.size() > 0) {
+            prefetch(missed, versions);
+        }
+    }
+
+    private void prefetch(Map<String, ID> entities, Map<ID, Long> versions) {
+        Map<ID, List<Document>> results = new HashMap<>();
+        String[] columns = {"did", "type", "data", "signature"};
+        String[] selectionArgs = entities.keySet().toArray(new String[0]);
+        String selection = "did IN (" + placeholders(selectionArgs.length) + ")";
+        try (Cursor cursor = query(EntityDatabase.T_DOCUMENT, columns, selection, selectionArgs, null, null, null)) {
+            ID identifier;
+            List<Document> documents;
+            while (cursor.moveToNext()) {
+                identifier = entities.get(cursor.getString(0));
+                if (identifier == null) {
+                    continue;
+                }
+                documents = results.get(identifier);
+                if (documents == null) {
+                    documents = new ArrayList<>();
+                    results.put(identifier, documents);
+                }
+                documents.add(createDocument(cursor, 1, identifier));
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+            return;
+        }
+        List<Document> documents;
+        for (ID item : entities.values()) {
+            documents = results.get(item);
+            if (documents == null) {
+                // entity without documents
+                documents = new ArrayList<>();
+            }
+            docsCache.putLoaded(item, documents, versions.get(item));
+        }
+    }
+
     @Override
-    public boolean saveDocument(Document doc) {
+    public boolean saveDocument(final Document doc) {
         // 0. check valid
         if (!doc.isValid()) {
             Log.error("document not valid: " + doc);
@@ -114,30 +180,45 @@ public final class DocumentTable extends DataTable implements chat.dim.database.
             type = "";
         }
         boolean exists = false;
-        // check old documents
-        List<Document> documents = getDocuments(identifier);
-        for (Document item : documents) {
+        // check old documents, replace it in memory cache
+        List<Document> documents = new ArrayList<>(getDocuments(identifier));
+        for (int index = 0; index < documents.size(); ++index) {
+            Document item = documents.get(index);
             if (identifier.equals(item.getIdentifier()) &&
                     type.equals(DocumentUtils.getDocumentType(item))) {
                 // old record found, update it
                 exists = true;
+                documents.set(index, doc);
                 break;
             }
         }
-        boolean saved;
-        if (exists) {
-            saved = updateDocument(doc);
-        } else {
-            saved = insertDocument(doc);
+        if (!exists) {
+            documents.add(doc);
         }
-        if (saved) {
-            Log.info("-------- entity document saved: " + identifier);
-            // clear to reload
-            docsTable.remove(identifier.toString());
-        } else {
-            Log.error("failed to save document: " + identifier);
-        }
-        return saved;
+        docsCache.put(identifier, documents);
+
+        // write behind
+        final boolean update = exists;
+        submit(identifier, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                boolean saved;
+                if (update) {
+                    saved = updateDocument(doc);
+                } else {
+                    saved = insertDocument(doc);
+                }
+                if (saved) {
+                    Log.info("-------- entity document saved: " + doc.getIdentifier());
+                } else {
+                    Log.error("failed to save document: " + doc.getIdentifier());
+                    // clear to reload
+                    docsCache.remove(doc.getIdentifier());
+                }
+                return saved;
+            }
+        });
+        return true;
     }
 
     protected boolean updateDocument(Document doc) {
@@ -49,7 +49,7 @@ public final class EntityDatabase extends Database {
     }
 
     private static final String DB_NAME = "mkm.db";
-    private static final int DB_VERSION = 2;
+    private static final int DB_VERSION = 4;
 
     static final String T_META = "t_meta";
     static final String T_DOCUMENT = "t_document";
@@ -59,6 +59,7 @@ public final class EntityDatabase extends Database {
 
     static final String T_GROUP = "t_group";
     static final String T_MEMBER = "t_member";
+    static final String T_GROUP_HISTORY = "t_group_history";
 
     //
     //  SQLiteOpenHelper
@@ -78,12 +79,15 @@ public final class EntityDatabase extends Database {
 
         // user contacts
         db.execSQL("CREATE TABLE " + T_CONTACT + "(uid VARCHAR(64), contact VARCHAR(64), alias VARCHAR(32))");
-        db.execSQL("CREATE INDEX user_id_index ON " + T_CONTACT + "(uid)");
+        db.execSQL("CREATE UNIQUE INDEX user_contact_index ON " + T_CONTACT + "(uid, contact)");
 
         // group members
         db.execSQL("CREATE TABLE " + T_GROUP + "(gid VARCHAR(64), name VARCHAR(32), founder VARCHAR(64), owner VARCHAR(64))");
         db.execSQL("CREATE TABLE " + T_MEMBER + "(gid VARCHAR(64), member VARCHAR(64))");
         db.execSQL("CREATE INDEX group_id_index ON " + T_MEMBER + "(gid)");
+
+        // group histories
+        createGroupHistoryTable(db);
     }
 
     @Override
@@ -91,10 +95,26 @@ public final class EntityDatabase extends Database {
         if (oldVersion < 2) {
             createDocumentTable(db);
         }
+        if (oldVersion < 3) {
+            // remove duplicated contacts before creating unique index,
+            // which also covers the old index on 'uid'
+            db.execSQL("DELETE FROM " + T_CONTACT + " WHERE rowid NOT IN"
+                    + " (SELECT MIN(rowid) FROM " + T_CONTACT + " GROUP BY uid, contact)");
+            db.execSQL("DROP INDEX IF EXISTS user_id_index");
+            db.execSQL("CREATE UNIQUE INDEX user_contact_index ON " + T_CONTACT + "(uid, contact)");
+        }
+        if (oldVersion < 4) {
+            createGroupHistoryTable(db);
+        }
     }
 
     private void createDocumentTable(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE " + T_DOCUMENT + "(did VARCHAR(64), type VARCHAR(8), data TEXT, signature BLOB)");
         db.execSQL("CREATE INDEX doc_id_index ON " + T_DOCUMENT + "(did)");
     }
+
+    private void createGroupHistoryTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + T_GROUP_HISTORY + "(gid VARCHAR(64), cmd VARCHAR(16), time INTEGER, content TEXT, message TEXT)");
+        db.execSQL("CREATE INDEX group_history_index ON " + T_GROUP_HISTORY + "(gid, time)");
+    }
 }
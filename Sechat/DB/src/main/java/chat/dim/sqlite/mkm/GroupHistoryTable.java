@@ -0,0 +1,229 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.sqlite.mkm;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCantOpenDatabaseException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import chat.dim.database.EntityCache;
+import chat.dim.format.JSON;
+import chat.dim.protocol.Command;
+import chat.dim.protocol.GroupCommand;
+import chat.dim.protocol.ID;
+import chat.dim.protocol.ReliableMessage;
+import chat.dim.protocol.group.ResetCommand;
+import chat.dim.sqlite.DataTable;
+import chat.dim.sqlite.Database;
+import chat.dim.type.Pair;
+
+/**
+ *  Group commands with their messages
+ *  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ *
+ *  Member histories are cleared when the group reset, so the histories of a group
+ *  are the tail after the last 'reset' command, which is kept in memory as a whole.
+ */
+public final class GroupHistoryTable extends DataTable implements chat.dim.database.GroupHistoryTable {
+
+    private GroupHistoryTable() {
+        super();
+    }
+
+    private static GroupHistoryTable ourInstance;
+    public static GroupHistoryTable getInstance() {
+        if (ourInstance == null) {
+            ourInstance = new GroupHistoryTable();
+        }
+        return ourInstance;
+    }
+
+    @Override
+    protected Database getDatabase() {
+        return EntityDatabase.getInstance();
+    }
+
+    // commands for administrators, the others are for members
+    private static final String ADMIN_COMMANDS = "('" + GroupCommand.HIRE + "', '" + GroupCommand.FIRE
+            + "', '" + GroupCommand.RESIGN + "')";
+
+    private static final String SQL_INSERT_HISTORY = "INSERT INTO " + EntityDatabase.T_GROUP_HISTORY
+            + " (gid, cmd, time, content, message) VALUES (?, ?, ?, ?, ?)";
+    private static final String SQL_DELETE_MEMBER_HISTORIES = "DELETE FROM " + EntityDatabase.T_GROUP_HISTORY
+            + " WHERE gid=? AND cmd NOT IN " + ADMIN_COMMANDS;
+    private static final String SQL_DELETE_ADMIN_HISTORIES = "DELETE FROM " + EntityDatabase.T_GROUP_HISTORY
+            + " WHERE gid=? AND cmd IN " + ADMIN_COMMANDS;
+
+    // histories of groups, oldest first, unmodifiable
+    private final EntityCache<ID, List<History>> historyCache = new EntityCache<>("group histories", 512,
+            3600 * 1000, 5 * 60 * 1000);
+
+    private final EntityCache.Loader<ID, List<History>> historyLoader = new EntityCache.Loader<ID, List<History>>() {
+        @Override
+        public List<History> load(ID group) {
+            return loadHistories(group);
+        }
+    };
+
+    private static final class History {
+
+        final long time;  // seconds
+        final GroupCommand content;
+        final ReliableMessage message;
+
+        History(long time, GroupCommand content, ReliableMessage message) {
+            super();
+            this.time = time;
+            this.content = content;
+            this.message = message;
+        }
+    }
+
+    private List<History> getHistories(ID group) {
+        List<History> histories = historyCache.get(group, historyLoader);
+        if (histories == null) {
+            return Collections.emptyList();
+        }
+        return histories;
+    }
+
+    private List<History> loadHistories(ID group) {
+        // evicted before written?
+        awaitWrites(group);
+        List<History> histories = new ArrayList<>();
+        String[] columns = {"time", "content", "message"};
+        String[] selectionArgs = {group.toString()};
+        try (Cursor cursor = query(EntityDatabase.T_GROUP_HISTORY, columns, "gid=?", selectionArgs,
+                null, null, "time ASC, rowid ASC")) {
+            History item;
+            while (cursor.moveToNext()) {
+                item = createHistory(cursor);
+                if (item != null) {
+                    histories.add(item);
+                }
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+        }
+        return Collections.unmodifiableList(histories);
+    }
+
+    private static History createHistory(Cursor cursor) {
+        long time = cursor.getLong(0);
+        Command content = Command.parse(JSON.decode(cursor.getString(1)));
+        if (!(content instanceof GroupCommand)) {
+            return null;
+        }
+        String json = cursor.getString(2);
+        ReliableMessage rMsg = json == null ? null : ReliableMessage.parse(JSON.decode(json));
+        return new History(time, (GroupCommand) content, rMsg);
+    }
+
+    //
+    //  chat.dim.database.GroupHistoryTable
+    //
+
+    @Override
+    public synchronized boolean saveGroupHistory(GroupCommand content, ReliableMessage rMsg, final ID group) {
+        Date date = content.getTime();
+        if (date == null && rMsg != null) {
+            date = rMsg.getTime();
+        }
+        final long time = date == null ? System.currentTimeMillis() / 1000 : date.getTime() / 1000;
+        final String cmd = content.getCmd();
+        final String text = JSON.encode(content);
+        final String json = rMsg == null ? null : JSON.encode(rMsg);
+
+        // 1. append to the tail in memory, ordered by time
+        List<History> histories = new ArrayList<>(getHistories(group));
+        int index = histories.size();
+        while (index > 0 && histories.get(index - 1).time > time) {
+            --index;
+        }
+        histories.add(index, new History(time, content, rMsg));
+        historyCache.put(group, Collections.unmodifiableList(histories));
+
+        // 2. save into database (write behind)
+        submit(group, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return executeInsert(SQL_INSERT_HISTORY, group.toString(), cmd, time, text, json) >= 0;
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public List<Pair<GroupCommand, ReliableMessage>> getGroupHistories(ID group) {
+        List<History> histories = getHistories(group);
+        List<Pair<GroupCommand, ReliableMessage>> array = new ArrayList<>(histories.size());
+        for (History item : histories) {
+            array.add(new Pair<>(item.content, item.message));
+        }
+        return array;
+    }
+
+    @Override
+    public Pair<ResetCommand, ReliableMessage> getResetCommandMessage(ID group) {
+        List<History> histories = getHistories(group);
+        History item;
+        for (int index = histories.size() - 1; index >= 0; --index) {
+            item = histories.get(index);
+            if (item.content instanceof ResetCommand) {
+                return new Pair<>((ResetCommand) item.content, item.message);
+            }
+        }
+        return new Pair<>(null, null);
+    }
+
+    @Override
+    public boolean clearGroupMemberHistories(ID group) {
+        return clearHistories(group, SQL_DELETE_MEMBER_HISTORIES);
+    }
+
+    @Override
+    public boolean clearGroupAdminHistories(ID group) {
+        return clearHistories(group, SQL_DELETE_ADMIN_HISTORIES);
+    }
+
+    private synchronized boolean clearHistories(final ID group, final String sql) {
+        boolean ok = write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return executeUpdateDelete(sql, group.toString()) >= 0;
+            }
+        }, false);
+        // reload on next access
+        historyCache.remove(group);
+        return ok;
+    }
+}
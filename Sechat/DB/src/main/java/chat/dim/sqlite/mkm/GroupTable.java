@@ -25,13 +25,18 @@
  */
 package chat.dim.sqlite.mkm;
 
-import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteCantOpenDatabaseException;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
+import chat.dim.database.EntityCache;
 import chat.dim.protocol.EntityType;
 import chat.dim.protocol.ID;
 import chat.dim.sqlite.DataTable;
@@ -95,8 +100,48 @@ public final class GroupTable extends DataTable implements chat.dim.database.Gro
         return owner;
     }
 
-    @Override
-    public List<ID> getMembers(ID group) {
+    //---- members
+
+    private static final String SQL_INSERT_MEMBER = "INSERT INTO " + EntityDatabase.T_MEMBER
+            + " (gid, member) VALUES (?, ?)";
+    private static final String SQL_DELETE_MEMBER = "DELETE FROM " + EntityDatabase.T_MEMBER
+            + " WHERE gid=? AND member=?";
+
+    // members of groups, replaced as a whole after changed
+    private final EntityCache<ID, Members> membersCache = new EntityCache<>("members", 1024,
+            3600 * 1000, 5 * 60 * 1000);
+
+    private final EntityCache.Loader<ID, Members> membersLoader = new EntityCache.Loader<ID, Members>() {
+        @Override
+        public Members load(ID group) {
+            return new Members(loadMembers(group));
+        }
+    };
+
+    /**
+     *  Immutable members of a group, with a hashed set for lookup
+     */
+    private static final class Members {
+
+        // in saved order
+        final List<ID> list;
+        final Set<ID> set;
+
+        Members(Collection<ID> members) {
+            super();
+            // duplicated members dropped
+            Set<ID> array = new LinkedHashSet<>(members);
+            list = Collections.unmodifiableList(new ArrayList<>(array));
+            set = Collections.unmodifiableSet(array);
+        }
+    }
+
+    private Members cachedMembers(ID group) {
+        // members saved by the writer while loading win (see EntityCache.get)
+        return membersCache.get(group, membersLoader);
+    }
+
+    private List<ID> loadMembers(ID group) {
         List<ID> members = new ArrayList<>();
         String[] columns = {"member"};
         String[] selectionArgs = {group.toString()};
@@ -115,44 +160,96 @@ public final class GroupTable extends DataTable implements chat.dim.database.Gro
     }
 
     @Override
-    public boolean addMember(ID member, ID group) {
-        ContentValues values = new ContentValues();
-        values.put("gid", group.toString());
-        values.put("member", member.toString());
-        return insert(EntityDatabase.T_MEMBER, null, values) >= 0;
+    public List<ID> getMembers(ID group) {
+        // copy for the caller to modify
+        return new ArrayList<>(cachedMembers(group).list);
+    }
+
+    @Override
+    public boolean containsMember(ID member, ID group) {
+        return cachedMembers(group).set.contains(member);
+    }
+
+    @Override
+    public boolean addMember(final ID member, final ID group) {
+        if (containsMember(member, group)) {
+            return false;
+        }
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                List<ID> members = loadMembers(group);
+                members.add(member);
+                return updateMembers(members, group);
+            }
+        }, false);
     }
 
     @Override
-    public boolean removeMember(ID member, ID group) {
-        String[] whereArgs = {group.toString(), member.toString()};
-        return delete(EntityDatabase.T_MEMBER, "gid=? AND member=?", whereArgs) > 0;
+    public boolean removeMember(final ID member, final ID group) {
+        if (!containsMember(member, group)) {
+            return false;
+        }
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                List<ID> members = loadMembers(group);
+                members.remove(member);
+                return updateMembers(members, group);
+            }
+        }, false);
     }
 
     @Override
-    public boolean saveMembers(List<ID> newMembers, ID group) {
+    public boolean saveMembers(final List<ID> newMembers, final ID group) {
+        // all changes committed in one transaction
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return updateMembers(newMembers, group);
+            }
+        }, false);
+    }
+
+    // call it on the writer thread,
+    // the old members are loaded from database, so it still works when the batch is retried
+    private boolean updateMembers(List<ID> newMembers, ID group) {
+        String gid = group.toString();
+        Members oldMembers = new Members(loadMembers(group));
+        Members members = new Members(newMembers);
         int count = 0;
         // remove expelled member(s)
-        List<ID> oldMembers = getMembers(group);
-        for (ID item : oldMembers) {
-            if (newMembers.contains(item)) {
+        for (ID item : oldMembers.list) {
+            if (members.set.contains(item)) {
                 continue;
             }
-            if (removeMember(item, group)) {
+            if (executeUpdateDelete(SQL_DELETE_MEMBER, gid, item.toString()) > 0) {
                 ++count;
             }
         }
         // insert new member(s)
-        for (ID item : newMembers) {
-            if (oldMembers.contains(item)) {
+        for (ID item : members.list) {
+            if (oldMembers.set.contains(item)) {
                 continue;
             }
-            if (addMember(item, group)) {
+            if (executeInsert(SQL_INSERT_MEMBER, gid, item.toString()) >= 0) {
                 ++count;
             }
         }
+        publishMembers(group, members);
         return count > 0;
     }
 
+    // update memory after committed, the write task may be rolled back
+    private void publishMembers(final ID group, final Members members) {
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                membersCache.put(group, members);
+            }
+        });
+    }
+
     @Override
     public List<ID> getAssistants(ID group) {
         return null;
@@ -174,10 +271,16 @@ public final class GroupTable extends DataTable implements chat.dim.database.Gro
     }
 
     @Override
-    public boolean removeGroup(ID group) {
-        String[] whereArgs = {group.toString()};
-        boolean ok1 = delete(EntityDatabase.T_MEMBER, "gid=?", whereArgs) > 0;
-        boolean ok2 = delete(EntityDatabase.T_GROUP, "gid=?", whereArgs) > 0;
-        return ok1 || ok2;
+    public boolean removeGroup(final ID group) {
+        return write(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                String[] whereArgs = {group.toString()};
+                boolean ok1 = delete(EntityDatabase.T_MEMBER, "gid=?", whereArgs) > 0;
+                boolean ok2 = delete(EntityDatabase.T_GROUP, "gid=?", whereArgs) > 0;
+                publishMembers(group, new Members(Collections.<ID>emptyList()));
+                return ok1 || ok2;
+            }
+        }, false);
     }
 }
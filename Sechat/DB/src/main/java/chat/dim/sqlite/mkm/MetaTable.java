@@ -25,19 +25,21 @@
  */
 package chat.dim.sqlite.mkm;
 
-import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteCantOpenDatabaseException;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import chat.dim.crypto.PublicKey;
+import chat.dim.database.EntityCache;
 import chat.dim.format.JSON;
 import chat.dim.format.TransportableData;
 import chat.dim.log.Log;
-import chat.dim.mkm.BaseMeta;
 import chat.dim.mkm.MetaUtils;
-import chat.dim.protocol.Address;
 import chat.dim.protocol.ID;
 import chat.dim.protocol.Meta;
 import chat.dim.protocol.MetaVersion;
@@ -63,19 +65,17 @@ public final class MetaTable extends DataTable implements chat.dim.database.Meta
         return EntityDatabase.getInstance();
     }
 
-    // memory caches
-    private final Map<ID, Meta> metaTable = new HashMap<>();
+    private static final String SQL_INSERT_META = "INSERT INTO " + EntityDatabase.T_META
+            + " (did, version, pk, seed, fingerprint) VALUES (?, ?, ?, ?, ?)";
 
-    private final Meta empty = new BaseMeta(new HashMap<>()) {
+    // memory caches, meta never changes, so only the absent ones expire soon
+    private final EntityCache<ID, Meta> metaCache = new EntityCache<>("meta", 8192,
+            24 * 3600 * 1000, 5 * 60 * 1000);
 
+    private final EntityCache.Loader<ID, Meta> metaLoader = new EntityCache.Loader<ID, Meta>() {
         @Override
-        protected boolean hasSeed() {
-            return false;
-        }
-
-        @Override
-        public Address generateAddress(int type) {
-            return null;
+        public Meta load(ID entity) {
+            return loadMeta(entity);
         }
     };
 
@@ -84,7 +84,7 @@ public final class MetaTable extends DataTable implements chat.dim.database.Meta
     //
 
     @Override
-    public boolean saveMeta(Meta meta, ID entity) {
+    public boolean saveMeta(Meta meta, final ID entity) {
         if (!MetaUtils.matches(entity, meta)) {
             Log.error("meta not match ID: " + entity + ", " + meta);
             return false;
@@ -96,10 +96,10 @@ public final class MetaTable extends DataTable implements chat.dim.database.Meta
             Log.info("meta already exists: " + entity);
             return true;
         }
-        int type = MetaVersion.parseInt(meta.getType(), 0);
-        String json = JSON.encode(meta.getPublicKey());
-        String seed;
-        byte[] fingerprint;
+        final int type = MetaVersion.parseInt(meta.getType(), 0);
+        final String json = JSON.encode(meta.getPublicKey());
+        final String seed;
+        final byte[] fingerprint;
         if (MetaVersion.hasSeed(type)) {
             seed = meta.getSeed();
             fingerprint = meta.getFingerprint();
@@ -108,58 +108,106 @@ public final class MetaTable extends DataTable implements chat.dim.database.Meta
             fingerprint = null;
         }
 
-        // 1. save into database
-        ContentValues values = new ContentValues();
-        values.put("did", entity.toString());
-        values.put("version", type);
-        values.put("pk", json);
-        values.put("seed", seed);
-        values.put("fingerprint", fingerprint);
-        if (insert(EntityDatabase.T_META, null, values) < 0) {
-            return false;
-        }
-        Log.info("-------- meta saved: " + entity);
+        // 1. store into memory cache
+        metaCache.put(entity, meta);
 
-        // 2. store into memory cache
-        metaTable.put(entity, meta);
+        // 2. save into database (write behind)
+        submit(entity, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    if (executeInsert(SQL_INSERT_META, entity.toString(), type, json, seed, fingerprint) < 0) {
+                        return false;
+                    }
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    return false;
+                }
+                Log.info("-------- meta saved: " + entity);
+                return true;
+            }
+        });
         return true;
     }
 
     @Override
     public Meta getMeta(ID entity) {
-        // 1. try from memory cache
-        Meta meta = metaTable.get(entity);
-        if (meta == null) {
-            // 2. try from database
-            String[] columns = {"version", "pk", "seed", "fingerprint"};
-            String[] selectionArgs = {entity.toString()};
-            try (Cursor cursor = query(EntityDatabase.T_META, columns, "did=?", selectionArgs, null, null, null)) {
-                if (cursor.moveToNext()) {
-                    int type = cursor.getInt(0);
-                    String json = cursor.getString(1);
-                    PublicKey key = PublicKey.parse(JSON.decode(json));
-                    if (MetaVersion.hasSeed(type)) {
-                        String seed = cursor.getString(2);
-                        byte[] fingerprint = cursor.getBlob(3);
-                        TransportableData ted = TransportableData.create(fingerprint);
-                        meta = Meta.create(Integer.toString(type), key, seed, ted);
-                    } else {
-                        meta = Meta.create(Integer.toString(type), key, null, null);
-                    }
-                    meta.put("version", type);  // compatible with 0.9.*
-                }
+        return metaCache.get(entity, metaLoader);
+    }
+
+    private Meta loadMeta(ID entity) {
+        // evicted before written?
+        awaitWrites(entity);
+        Meta meta = null;
+        String[] columns = {"version", "pk", "seed", "fingerprint"};
+        String[] selectionArgs = {entity.toString()};
+        try (Cursor cursor = query(EntityDatabase.T_META, columns, "did=?", selectionArgs, null, null, null)) {
+            if (cursor.moveToNext()) {
+                meta = createMeta(cursor, 0);
             }
-            if (meta == null) {
-                // 2.1. place an empty meta for cache
-                meta = empty;
+        }
+        return meta;
+    }
+
+    // create meta with columns "version", "pk", "seed", "fingerprint" from the offset
+    private static Meta createMeta(Cursor cursor, int offset) {
+        Meta meta;
+        int type = cursor.getInt(offset);
+        String json = cursor.getString(offset + 1);
+        PublicKey key = PublicKey.parse(JSON.decode(json));
+        if (MetaVersion.hasSeed(type)) {
+            String seed = cursor.getString(offset + 2);
+            byte[] fingerprint = cursor.getBlob(offset + 3);
+            TransportableData ted = TransportableData.create(fingerprint);
+            meta = Meta.create(Integer.toString(type), key, seed, ted);
+        } else {
+            meta = Meta.create(Integer.toString(type), key, null, null);
+        }
+        meta.put("version", type);  // compatible with 0.9.*
+        return meta;
+    }
+
+    @Override
+    public void prefetchMeta(Collection<ID> entities) {
+        // entities not cached yet, with their cache versions before loading
+        Map<String, ID> missed = new HashMap<>();
+        Map<ID, Long> versions = new HashMap<>();
+        for (ID item : entities) {
+            if (versions.containsKey(item) || metaCache.contains(item) || isWritePending(item)) {
+                continue;
             }
+            missed.put(item.toString(), item);
+            versions.put(item, metaCache.getVersion(item));
+            if (missed.size() >= MAX_BIND_ARGS) {
+                prefetch(missed, versions);
+                missed.clear();
+            }
+        }
+        if (missed.size() > 0) {
+            prefetch(missed, versions);
+        }
+    }
 
-            // 3. store into memory cache
-            metaTable.put(entity, meta);
+    private void prefetch(Map<String, ID> entities, Map<ID, Long> versions) {
+        Map<ID, Meta> results = new HashMap<>();
+        String[] columns = {"did", "version", "pk", "seed", "fingerprint"};
+        String[] selectionArgs = entities.keySet().toArray(new String[0]);
+        String selection = "did IN (" + placeholders(selectionArgs.length) + ")";
+        try (Cursor cursor = query(EntityDatabase.T_META, columns, selection, selectionArgs, null, null, null)) {
+            ID identifier;
+            while (cursor.moveToNext()) {
+                identifier = entities.get(cursor.getString(0));
+                if (identifier != null && !results.containsKey(identifier)) {
+                    results.put(identifier, createMeta(cursor, 1));
+                }
+            }
+        } catch (SQLiteCantOpenDatabaseException e) {
+            e.printStackTrace();
+            return;
         }
-        if (meta == empty) {
-            return null;
+        // absent ones are cached too
+        for (ID item : entities.values()) {
+            metaCache.putLoaded(item, results.get(item), versions.get(item));
         }
-        return meta;
     }
 }
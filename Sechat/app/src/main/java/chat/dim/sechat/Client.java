@@ -26,6 +26,7 @@ import chat.dim.log.Log;
 import chat.dim.mkm.Station;
 import chat.dim.mkm.User;
 import chat.dim.model.NetworkDatabase;
+import chat.dim.model.StationProber;
 import chat.dim.network.ClientSession;
 import chat.dim.network.SessionState;
 import chat.dim.network.StateMachine;
@@ -191,11 +192,6 @@ public final class Client extends Terminal implements Observer {
         GlobalVariable shared = GlobalVariable.getInstance();
         SharedFacebook facebook = shared.facebook;
 
-        // FIXME: debug
-        //host = "192.168.31.91";
-        host = "129.226.12.4";
-        port = 9394;
-
         // connect server
         connect(host, port);
 
@@ -214,8 +210,11 @@ public final class Client extends Terminal implements Observer {
             ProviderTable.ProviderInfo sp = providers.get(0);
             List<ProviderTable.StationInfo> stations = database.allStations(sp.identifier);
             if (stations != null && stations.size() > 0) {
-                // choose the default station
-                ProviderTable.StationInfo srv = stations.get(0);
+                // choose the fastest station
+                StationProber prober = StationProber.getInstance();
+                prober.probe(stations);
+                ProviderTable.StationInfo srv = prober.choose(stations);
+                Log.info("station chosen: " + srv.host + ":" + srv.port + ", rtt: " + srv.rtt + " ms");
                 startServer(srv);
             }
         }
@@ -25,11 +25,13 @@ import chat.dim.sqlite.ans.AddressNameTable;
 import chat.dim.sqlite.dim.LoginTable;
 import chat.dim.sqlite.dim.ProviderTable;
 import chat.dim.sqlite.dkd.MessageTable;
+import chat.dim.sqlite.key.GroupKeysTable;
 import chat.dim.sqlite.key.MsgKeyTable;
 import chat.dim.sqlite.key.PrivateKeyTable;
 import chat.dim.sqlite.mkm.ContactTable;
 import chat.dim.sqlite.mkm.DocumentTable;
 import chat.dim.sqlite.mkm.EntityDatabase;
+import chat.dim.sqlite.mkm.GroupHistoryTable;
 import chat.dim.sqlite.mkm.GroupTable;
 import chat.dim.sqlite.mkm.MetaTable;
 import chat.dim.sqlite.mkm.UserTable;
@@ -71,8 +73,10 @@ public final class SechatApp extends Application {
         shared.database.userTable = UserTable.getInstance();
         shared.database.contactTable = ContactTable.getInstance();
         shared.database.groupTable = GroupTable.getInstance();
+        shared.database.groupHistoryTable = GroupHistoryTable.getInstance();
 
         shared.database.msgKeyTable = keyStore;
+        shared.database.groupKeysTable = GroupKeysTable.getInstance();
         shared.database.loginTable = LoginTable.getInstance();
         shared.database.providerTable = ProviderTable.getInstance();
 
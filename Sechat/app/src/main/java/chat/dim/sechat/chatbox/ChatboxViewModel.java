@@ -4,7 +4,6 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import chat.dim.format.PortableNetworkFile;
@@ -39,24 +38,14 @@ enum MsgType {
 
 public class ChatboxViewModel extends EntityViewModel {
 
-    List<InstantMessage> getAllMessages(Conversation chatBox) {
+    int numberOfMessages(Conversation chatBox) {
         ConversationDatabase msgDB = ConversationDatabase.getInstance();
         if (msgDB.clearUnreadMessages(chatBox)) {
             NotificationCenter nc = NotificationCenter.getInstance();
             nc.postNotification(NotificationNames.HistoryUpdated, this, null);
         }
-
-        List<InstantMessage> messages = new ArrayList<>();
-        InstantMessage iMsg;
-        int count = msgDB.numberOfMessages(chatBox);
-        for (int index = 0; index < count; ++index) {
-            iMsg = msgDB.messageAtIndex(index, chatBox);
-            if (iMsg == null) {
-                continue;
-            }
-            messages.add(iMsg);
-        }
-        return messages;
+        // messages will be loaded when items shown
+        return msgDB.numberOfMessages(chatBox);
     }
 
     static MsgType getType(InstantMessage iMsg, Conversation chatBox) {
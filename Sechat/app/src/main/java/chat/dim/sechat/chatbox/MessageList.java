@@ -1,7 +1,5 @@
 package chat.dim.sechat.chatbox;
 
-import java.util.List;
-
 import chat.dim.model.Conversation;
 import chat.dim.protocol.InstantMessage;
 import chat.dim.ui.list.DummyItem;
@@ -28,9 +26,9 @@ public class MessageList extends DummyList<MessageList.Item> {
         }
         clearItems();
 
-        List<InstantMessage> messages = viewModel.getAllMessages(chatBox);
-        for (InstantMessage msg : messages) {
-            addItem(new Item(msg));
+        int count = viewModel.numberOfMessages(chatBox);
+        for (int index = 0; index < count; ++index) {
+            addItem(new Item(chatBox, index));
         }
     }
 
@@ -39,10 +37,22 @@ public class MessageList extends DummyList<MessageList.Item> {
      */
     public static class Item implements DummyItem {
 
-        final InstantMessage msg;
+        private final Conversation chatBox;
+        private final int index;
+
+        private InstantMessage msg = null;
+
+        public Item(Conversation chatBox, int index) {
+            this.chatBox = chatBox;
+            this.index = index;
+        }
 
-        public Item(InstantMessage iMsg) {
-            msg = iMsg;
+        // load message when it's shown
+        InstantMessage getMessage() {
+            if (msg == null) {
+                msg = chatBox.messageAtIndex(index);
+            }
+            return msg;
         }
     }
 }
@@ -83,7 +83,14 @@ public class MessageViewAdapter extends RecyclerViewAdapter<MessageViewAdapter.V
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
         MessageList.Item item = dummyList.getItem(position);
 
-        InstantMessage iMsg = item.msg;
+        InstantMessage iMsg = item.getMessage();
+        if (iMsg == null) {
+            // message content error
+            holder.leftLayout.setVisibility(View.GONE);
+            holder.centerLayout.setVisibility(View.GONE);
+            holder.rightLayout.setVisibility(View.GONE);
+            return;
+        }
         View view = holder.itemView;
         Context context = view.getContext();
 
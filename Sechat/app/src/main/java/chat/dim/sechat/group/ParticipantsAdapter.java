@@ -30,6 +30,7 @@ import chat.dim.protocol.ID;
 import chat.dim.sechat.R;
 import chat.dim.sechat.group.expel.ExpelActivity;
 import chat.dim.sechat.group.invite.InviteActivity;
+import chat.dim.sechat.model.EntityPrefetcher;
 import chat.dim.sechat.model.UserViewModel;
 import chat.dim.sechat.profile.ProfileActivity;
 import chat.dim.threading.MainThread;
@@ -44,6 +45,9 @@ public class ParticipantsAdapter extends ArrayAdapter<ID> {
     private final int resId;
     private final ID identifier;
 
+    // names & avatars of members around the visible ones
+    private final EntityPrefetcher prefetcher = new EntityPrefetcher(this::getItem);
+
     public ParticipantsAdapter(Context context, int resource, List<ID> objects, ID conversation) {
         super(context, resource, objects);
         resId = resource;
@@ -56,6 +60,7 @@ public class ParticipantsAdapter extends ArrayAdapter<ID> {
         ViewHolder viewHolder;
         ID identifier = getItem(position);
         assert identifier != null : "failed to get participant ID with position: " + position;
+        prefetcher.onBind(position, getCount());
 
         if (convertView == null) {
             view = LayoutInflater.from(getContext()).inflate(resId, null);
@@ -5,6 +5,7 @@ import android.graphics.Bitmap;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import chat.dim.GlobalVariable;
 import chat.dim.SharedFacebook;
@@ -115,8 +116,10 @@ public class ConversationList extends DummyList<ConversationList.Item> {
         }
 
         String getUnread() {
-            int count = msgDB.numberOfUnreadMessages(chatBox);
-            if (count > 0) {
+            // counts of all conversations cached in memory, no query for each item
+            Map<ID, Integer> counts = msgDB.unreadCounts();
+            Integer count = counts.get(chatBox.identifier);
+            if (count != null && count > 0) {
                 return "" + count;
             }
             return null;
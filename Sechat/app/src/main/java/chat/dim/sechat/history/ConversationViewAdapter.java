@@ -12,6 +12,7 @@ import android.widget.TextView;
 
 import chat.dim.protocol.ID;
 import chat.dim.sechat.R;
+import chat.dim.sechat.model.EntityPrefetcher;
 import chat.dim.ui.list.Listener;
 import chat.dim.ui.list.RecyclerViewAdapter;
 import chat.dim.ui.list.RecyclerViewHolder;
@@ -23,6 +24,12 @@ import chat.dim.ui.list.RecyclerViewHolder;
  */
 public class ConversationViewAdapter extends RecyclerViewAdapter<ConversationViewAdapter.ViewHolder, ConversationList> {
 
+    // names & avatars of conversations around the visible ones
+    private final EntityPrefetcher prefetcher = new EntityPrefetcher(position -> {
+        ConversationList.Item item = dummyList.getItem(position);
+        return item == null ? null : item.getIdentifier();
+    });
+
     ConversationViewAdapter(ConversationList list, Listener listener) {
         super(list, listener);
     }
@@ -37,6 +44,7 @@ public class ConversationViewAdapter extends RecyclerViewAdapter<ConversationVie
 
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        prefetcher.onBind(position, getItemCount());
         ConversationList.Item item = dummyList.getItem(position);
 
         ID identifier = item.getIdentifier();
@@ -0,0 +1,93 @@
+/* license: https://mit-license.org
+ * ==============================================================================
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2020 Albert Moky
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * ==============================================================================
+ */
+package chat.dim.sechat.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import chat.dim.GlobalVariable;
+import chat.dim.SharedFacebook;
+import chat.dim.protocol.ID;
+import chat.dim.threading.BackgroundThreads;
+
+/**
+ *  Prefetch meta, documents & names of the entities around the bound items,
+ *  so a list shows them without one query per row
+ */
+public class EntityPrefetcher {
+
+    public interface Source {
+
+        ID getIdentifier(int position);
+    }
+
+    // items to load ahead of the bound one
+    private static final int LOOKAHEAD = 24;
+
+    private final Source source;
+
+    // prefetched range [start, end)
+    private int start = 0;
+    private int end = 0;
+    private int total = -1;
+
+    public EntityPrefetcher(Source source) {
+        super();
+        this.source = source;
+    }
+
+    /**
+     *  Call it when binding an item
+     *
+     * @param position - item position
+     * @param count    - items count
+     */
+    public void onBind(int position, int count) {
+        if (count == total && position >= start && (position + LOOKAHEAD / 2 < end || end == count)) {
+            // prefetched
+            return;
+        }
+        total = count;
+        start = Math.max(0, position - LOOKAHEAD / 2);
+        end = Math.min(count, position + LOOKAHEAD * 2);
+        List<ID> entities = new ArrayList<>(end - start);
+        ID identifier;
+        for (int index = start; index < end; ++index) {
+            identifier = source.getIdentifier(index);
+            if (identifier != null) {
+                entities.add(identifier);
+            }
+        }
+        if (entities.size() == 0) {
+            return;
+        }
+        BackgroundThreads.wait(() -> {
+            GlobalVariable shared = GlobalVariable.getInstance();
+            SharedFacebook facebook = shared.facebook;
+            facebook.prefetch(entities);
+        });
+    }
+}